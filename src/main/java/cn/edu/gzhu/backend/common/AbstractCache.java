@@ -1,127 +1,338 @@
 package cn.edu.gzhu.backend.common;
 
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Set;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntFunction;
+import java.util.function.Predicate;
 
 import cn.edu.gzhu.backend.utils.Panic;
 import cn.edu.gzhu.common.Error;
 
 /**
  * AbstractCache 实现了一个引用计数策略的缓存
+ *
+ * 缓存按 key 的哈希被划分为 SEGMENT_COUNT 个相互独立的段，每个段有自己的锁和 Map，
+ * 不同段上的 get/release 可以并行执行；只有缓存总数 count 是全局共享的（原子变量）。
+ *
+ * 未指定驱逐策略时，引用计数归零即驱逐；指定了 EvictionPolicy 时，引用归零的资源继续驻留，
+ * 只有缓存满时才由策略挑选一个未被引用的资源驱逐。
+ * 每个段有自己的策略实例，只在持有该段的锁时调用，命中时不会经过任何全局的锁。
+ * 驱逐时先在请求者所在的段中挑选，没有可驱逐的资源再依次尝试其他段。
+ * 不会在持有一个段锁时去获取另一个段锁。
  */
 public abstract class AbstractCache<T> {
-    // 实际缓存的数据
-    private HashMap<Long, T> cache;
-    // 元素的引用个数
-    private HashMap<Long, Integer> references;
-    // 正在获取某资源的线程
-    private HashMap<Long, Boolean> getting;
+    // 段数，必须是 2 的幂
+    private static final int SEGMENT_SHIFT = 4;
+    private static final int SEGMENT_COUNT = 1 << SEGMENT_SHIFT;
+
+    private Segment<T>[] segments;
 
     // 缓存的最大缓存资源数
     private int maxResource;
-    // 缓存中元素的个数
-    private int count = 0;
-    private Lock lock;
+    // 缓存中元素的个数（包括正在获取的）
+    private AtomicInteger count;
+    // 是否指定了驱逐策略，为 false 时引用归零即驱逐
+    private boolean evictable;
+
+    static class Segment<T> {
+        // 实际缓存的数据
+        HashMap<Long, T> cache = new HashMap<>();
+        // 元素的引用个数
+        HashMap<Long, Integer> references = new HashMap<>();
+        // 正在获取的资源，获取结束（成功或失败）时 countDown，唤醒等待者
+        HashMap<Long, CountDownLatch> getting = new HashMap<>();
+        Lock lock = new ReentrantLock();
+        // 本段的驱逐策略，由 lock 保护
+        EvictionPolicy policy;
+    }
 
     public AbstractCache(int maxResource){
+        this(maxResource, null);
+    }
+
+    /**
+     * @param policies 由每段的容量构造该段的驱逐策略，为 null 时引用归零即驱逐
+     */
+    public AbstractCache(int maxResource, IntFunction<EvictionPolicy> policies){
         this.maxResource = maxResource;
-        cache = new HashMap<>();
-        references = new HashMap<>();
-        getting = new HashMap<>();
-        lock = new ReentrantLock();
+        this.evictable = policies != null;
+        this.count = new AtomicInteger(0);
+        @SuppressWarnings("unchecked")
+        Segment<T>[] s = (Segment<T>[]) new Segment<?>[SEGMENT_COUNT];
+        segments = s;
+        // 段的容量只是策略的初始大小，哈希不均时一个段可以容纳更多的资源
+        int capacity = Math.max(1, (maxResource + SEGMENT_COUNT - 1) / SEGMENT_COUNT);
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            segments[i] = new Segment<>();
+            if(evictable) {
+                segments[i].policy = policies.apply(capacity);
+            }
+        }
+    }
+
+    // 页号、uid 的低位分布不均匀，先打散再取高位选段
+    private static int segmentIndex(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> (64 - SEGMENT_SHIFT));
+    }
+
+    private Segment<T> segmentFor(long key) {
+        return segments[segmentIndex(key)];
     }
 
     protected T get(long key) throws Exception{
+        Segment<T> seg = segmentFor(key);
         while (true) {
-            lock.lock();
-            if(getting.containsKey(key)){
-                // 请求的资源正在被其他线程获取
-                lock.unlock();
-                try{
-                    Thread.sleep(1);
-                } catch (InterruptedException e){
-                    e.printStackTrace();
-                    continue;
-                }
+            seg.lock.lock();
+            CountDownLatch loading = seg.getting.get(key);
+            if(loading != null){
+                // 请求的资源正在被其他线程获取，等待其结束后重试
+                seg.lock.unlock();
+                awaitLoad(loading);
                 continue;
             }
-            if(cache.containsKey(key)){
+            if(seg.cache.containsKey(key)){
                 // 资源在缓存中，直接返回
-                T obj = cache.get(key);
-                references.put(key, references.get(key) + 1);
-                lock.unlock();
+                T obj = seg.cache.get(key);
+                seg.references.put(key, seg.references.get(key) + 1);
+                if(evictable) {
+                    seg.policy.access(key);
+                }
+                seg.lock.unlock();
                 return obj;
             }
             // 尝试获取该资源
-            if(maxResource > 0 && count == maxResource){
-                lock.unlock();
+            if(!reserve()){
+                seg.lock.unlock();
+                if(evictable && evict(key)) {
+                    continue;
+                }
                 throw Error.CacheFullException;
             }
-            count++;
-            getting.put(key, true);
-            lock.unlock();
+            seg.getting.put(key, new CountDownLatch(1));
+            seg.lock.unlock();
             break;
         }
         T obj = null;
         try {
             obj = getForCache(key);
         } catch (Exception e){
-            lock.lock();
-            count --;
-            getting.remove(key);
-            lock.unlock();
+            seg.lock.lock();
+            count.decrementAndGet();
+            CountDownLatch loading = seg.getting.remove(key);
+            seg.lock.unlock();
+            loading.countDown();
             throw e;
         }
-        lock.lock();
-        getting.remove(key);
-        cache.put(key, obj);
-        references.put(key, 1);
-        lock.unlock();
+        seg.lock.lock();
+        CountDownLatch loading = seg.getting.remove(key);
+        seg.cache.put(key, obj);
+        seg.references.put(key, 1);
+        if(evictable) {
+            seg.policy.access(key);
+        }
+        seg.lock.unlock();
+        loading.countDown();
         return obj;
     }
 
+    // 等待期间被中断时继续等待，返回前恢复中断标志
+    private static void awaitLoad(CountDownLatch loading) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                loading.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if(interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 由策略挑选一个未被引用的资源并驱逐，没有可驱逐的资源时返回 false
+     * 从 key 所在的段开始，依次在各段中挑选
+     */
+    private boolean evict(long key) {
+        int start = segmentIndex(key);
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            Segment<T> seg = segments[(start + i) & (SEGMENT_COUNT - 1)];
+            seg.lock.lock();
+            try {
+                long victim = seg.policy.victim();
+                if(victim == EvictionPolicy.NO_VICTIM) {
+                    continue;
+                }
+                // 策略只挑选未被引用的资源，引用计数也由段锁保护，这里必然为 0
+                T obj = seg.cache.remove(victim);
+                seg.references.remove(victim);
+                seg.policy.remove(victim);
+                releaseForCache(obj);
+                count.decrementAndGet();
+                return true;
+            } catch (Exception e) {
+                Panic.panic(e);
+            } finally {
+                seg.lock.unlock();
+            }
+        }
+        return false;
+    }
+
+    // 为即将获取的资源占一个位置，缓存已满时返回 false
+    private boolean reserve() {
+        if(maxResource <= 0) {
+            count.incrementAndGet();
+            return true;
+        }
+        while (true) {
+            int c = count.get();
+            if(c >= maxResource) {
+                return false;
+            }
+            if(count.compareAndSet(c, c + 1)) {
+                return true;
+            }
+        }
+    }
+
     /**
      * 强行释放一个缓存
      */
     protected void release(long key) {
-        lock.lock();
+        Segment<T> seg = segmentFor(key);
+        seg.lock.lock();
         try {
-            int ref = references.get(key) - 1;
-            if(ref == 0){
-                T obj = cache.get(key);
+            int ref = seg.references.get(key) - 1;
+            if(ref == 0 && evictable) {
+                // 继续驻留，等待策略驱逐
+                seg.references.put(key, 0);
+                seg.policy.unpin(key);
+            } else if(ref == 0){
+                T obj = seg.cache.get(key);
                 releaseForCache(obj);
-                references.remove(key);
-                cache.remove(key);
-                count --;
+                seg.references.remove(key);
+                seg.cache.remove(key);
+                count.decrementAndGet();
             } else {
-                references.put(key, ref);
+                seg.references.put(key, ref);
             }
         } catch (Exception e){
             Panic.panic(e);
         } finally {
-            lock.unlock();
+            seg.lock.unlock();
+        }
+    }
+
+    /**
+     * 为预读占住 key，不阻塞：资源已在缓存或正在获取、缓存已满且没有可驱逐的资源时返回 false。
+     * 返回 true 后调用者必须调用 completePrefetch，在此之前其他线程对该 key 的 get 会等待。
+     * 只有指定了驱逐策略才能预读，否则引用为 0 的资源永远不会被驱逐。
+     */
+    protected boolean reservePrefetch(long key) {
+        if(!evictable) {
+            return false;
+        }
+        Segment<T> seg = segmentFor(key);
+        while (true) {
+            seg.lock.lock();
+            try {
+                if(seg.getting.containsKey(key) || seg.cache.containsKey(key)) {
+                    return false;
+                }
+                if(reserve()) {
+                    seg.getting.put(key, new CountDownLatch(1));
+                    return true;
+                }
+            } finally {
+                seg.lock.unlock();
+            }
+            if(!evict(key)) {
+                return false;
+            }
         }
     }
 
+    /**
+     * 结束 reservePrefetch 占住的 key，obj 为 null 表示放弃
+     * 预读的资源以引用 0 驻留，是否保留由驱逐策略决定
+     */
+    protected void completePrefetch(long key, T obj) {
+        Segment<T> seg = segmentFor(key);
+        seg.lock.lock();
+        CountDownLatch loading = seg.getting.remove(key);
+        if(obj == null) {
+            count.decrementAndGet();
+        } else {
+            seg.cache.put(key, obj);
+            seg.references.put(key, 0);
+            seg.policy.access(key);
+            seg.policy.unpin(key);
+        }
+        seg.lock.unlock();
+        loading.countDown();
+    }
+
+    /**
+     * 为所有驻留且满足 filter 的资源增加一个引用并返回，不算作访问
+     * 调用者用完后需要逐个 release
+     */
+    protected List<T> pinAll(Predicate<T> filter) {
+        List<T> pinned = new ArrayList<>();
+        for (Segment<T> seg : segments) {
+            seg.lock.lock();
+            try {
+                for (Map.Entry<Long, T> entry : seg.cache.entrySet()) {
+                    if(!filter.test(entry.getValue())) {
+                        continue;
+                    }
+                    long key = entry.getKey();
+                    seg.references.put(key, seg.references.get(key) + 1);
+                    if(evictable) {
+                        seg.policy.pin(key);
+                    }
+                    pinned.add(entry.getValue());
+                }
+            } finally {
+                seg.lock.unlock();
+            }
+        }
+        return pinned;
+    }
+
     /**
      * 关闭缓存，写回所有资源
      */
     protected void close(){
-        lock.lock();
-        try{
-            Set<Long> keys = cache.keySet();
-            for (Long key : keys) {
-                T obj = cache.get(key);
-                releaseForCache(obj);
-                references.remove(key);
-                cache.remove(key);
+        for (Segment<T> seg : segments) {
+            seg.lock.lock();
+            try{
+                Iterator<Map.Entry<Long, T>> it = seg.cache.entrySet().iterator();
+                while (it.hasNext()) {
+                    Map.Entry<Long, T> entry = it.next();
+                    releaseForCache(entry.getValue());
+                    seg.references.remove(entry.getKey());
+                    if(evictable) {
+                        seg.policy.remove(entry.getKey());
+                    }
+                    it.remove();
+                    count.decrementAndGet();
+                }
+            } catch (Exception e){
+                Panic.panic(e);
+            } finally {
+                seg.lock.unlock();
             }
-        } catch (Exception e){
-            Panic.panic(e);
-        } finally {
-            lock.unlock();
         }
     }
 
@@ -0,0 +1,41 @@
+package cn.edu.gzhu.backend.common;
+
+import cn.edu.gzhu.backend.common.impl.ClockPolicy;
+import cn.edu.gzhu.backend.common.impl.TwoQueuePolicy;
+import cn.edu.gzhu.common.Error;
+
+import java.util.function.IntFunction;
+
+/**
+ * 缓存驱逐策略
+ * AbstractCache 的每个段有一个策略实例，所有方法都在持有该段的锁时调用，实现不需要自己加锁。
+ * 被引用（pin）的资源不能被选为驱逐对象，引用归零后通过 unpin 通知策略。
+ */
+public interface EvictionPolicy {
+    long NO_VICTIM = -1;
+
+    String CLOCK = "clock";
+    String TWO_QUEUE = "2q";
+
+    // 资源被载入或命中，此时资源处于被引用状态
+    void access(long key);
+    // 资源被引用，但不算作一次访问
+    void pin(long key);
+    // 资源的引用计数归零，可以被驱逐
+    void unpin(long key);
+    // 挑选一个未被引用的资源，没有时返回 NO_VICTIM
+    long victim();
+    // 资源已被驱逐
+    void remove(long key);
+
+    // 按名称取得策略的构造方法，参数为初始容量
+    public static IntFunction<EvictionPolicy> newPolicies(String name) throws Exception {
+        if(name == null || "".equals(name) || TWO_QUEUE.equals(name)) {
+            return TwoQueuePolicy::new;
+        }
+        if(CLOCK.equals(name)) {
+            return ClockPolicy::new;
+        }
+        throw Error.InvalidCachePolicyException;
+    }
+}
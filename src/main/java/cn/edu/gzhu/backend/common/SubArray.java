@@ -1,11 +1,14 @@
 package cn.edu.gzhu.backend.common;
 
+import java.nio.ByteBuffer;
+
 public class SubArray {
-    public byte[] raw;
+    // 通常是页帧，只能按绝对位置读写
+    public ByteBuffer raw;
     public int start;
     public int end;
 
-    public SubArray(byte[] raw, int start, int end) {
+    public SubArray(ByteBuffer raw, int start, int end) {
         this.raw = raw;
         this.start = start;
         this.end = end;
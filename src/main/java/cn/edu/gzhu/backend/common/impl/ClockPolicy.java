@@ -0,0 +1,111 @@
+package cn.edu.gzhu.backend.common.impl;
+
+import cn.edu.gzhu.backend.common.EvictionPolicy;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * CLOCK 驱逐策略
+ * 所有驻留的资源排成一个环，每个槽位有一个访问位。指针扫过时，访问位为 1 的清零并跳过，
+ * 为 0 且未被引用的资源即为驱逐对象。
+ * 槽位用完时环扩大一倍，容量只是初始大小。
+ */
+public class ClockPolicy implements EvictionPolicy {
+    private long[] keys;
+    private boolean[] used;
+    private boolean[] referenced;
+    private boolean[] pinned;
+
+    // key 所在的槽位
+    private Map<Long, Integer> slots;
+    // 空闲槽位
+    private Deque<Integer> free;
+    private int hand;
+
+    public ClockPolicy(int capacity) {
+        keys = new long[0];
+        used = new boolean[0];
+        referenced = new boolean[0];
+        pinned = new boolean[0];
+        slots = new HashMap<>();
+        free = new ArrayDeque<>();
+        grow(Math.max(1, capacity));
+    }
+
+    // 环扩大到 capacity 个槽位，新的槽位加入空闲链表
+    private void grow(int capacity) {
+        int old = keys.length;
+        keys = Arrays.copyOf(keys, capacity);
+        used = Arrays.copyOf(used, capacity);
+        referenced = Arrays.copyOf(referenced, capacity);
+        pinned = Arrays.copyOf(pinned, capacity);
+        for (int i = capacity - 1; i >= old; i--) {
+            free.push(i);
+        }
+    }
+
+    @Override
+    public void access(long key) {
+        Integer slot = slots.get(key);
+        if(slot == null) {
+            if(free.isEmpty()) {
+                grow(keys.length * 2);
+            }
+            slot = free.pop();
+            slots.put(key, slot);
+            keys[slot] = key;
+            used[slot] = true;
+        }
+        referenced[slot] = true;
+        pinned[slot] = true;
+    }
+
+    @Override
+    public void pin(long key) {
+        Integer slot = slots.get(key);
+        if(slot != null) {
+            pinned[slot] = true;
+        }
+    }
+
+    @Override
+    public void unpin(long key) {
+        Integer slot = slots.get(key);
+        if(slot != null) {
+            pinned[slot] = false;
+        }
+    }
+
+    @Override
+    public long victim() {
+        // 转两圈：第一圈清访问位，第二圈必然能找到未被引用的资源（如果有的话）
+        for (int i = 0; i < 2 * keys.length; i++) {
+            int slot = hand;
+            hand = (hand + 1) % keys.length;
+            if(!used[slot] || pinned[slot]) {
+                continue;
+            }
+            if(referenced[slot]) {
+                referenced[slot] = false;
+                continue;
+            }
+            return keys[slot];
+        }
+        return NO_VICTIM;
+    }
+
+    @Override
+    public void remove(long key) {
+        Integer slot = slots.remove(key);
+        if(slot != null) {
+            used[slot] = false;
+            referenced[slot] = false;
+            pinned[slot] = false;
+            free.push(slot);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package cn.edu.gzhu.backend.common.impl;
+
+import cn.edu.gzhu.backend.common.EvictionPolicy;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * 2Q 驱逐策略（Johnson & Shasha）
+ * A1in：首次载入的资源，FIFO，容量约为缓存的 1/4
+ * A1out：从 A1in 驱逐的资源的 key（只保存 key），容量约为缓存的 1/2
+ * Am：在 A1out 中被再次访问的热资源，LRU
+ * 一次大表扫描只会冲刷 A1in，不会把 Am 中的热页挤出去。
+ */
+public class TwoQueuePolicy implements EvictionPolicy {
+    private int kIn;
+    private int kOut;
+
+    // 迭代顺序即 FIFO/LRU 顺序，队头最旧
+    private LinkedHashSet<Long> a1in;
+    private LinkedHashSet<Long> a1out;
+    private LinkedHashSet<Long> am;
+    private Set<Long> pinned;
+
+    public TwoQueuePolicy(int capacity) {
+        kIn = Math.max(1, capacity / 4);
+        kOut = Math.max(1, capacity / 2);
+        a1in = new LinkedHashSet<>();
+        a1out = new LinkedHashSet<>();
+        am = new LinkedHashSet<>();
+        pinned = new HashSet<>();
+    }
+
+    @Override
+    public void access(long key) {
+        pinned.add(key);
+        if(am.remove(key)) {
+            am.add(key);
+        } else if(a1in.contains(key)) {
+            // A1in 中的再次访问不提升，避免短时间内的相关访问污染 Am
+        } else if(a1out.remove(key)) {
+            am.add(key);
+        } else {
+            a1in.add(key);
+        }
+    }
+
+    @Override
+    public void pin(long key) {
+        pinned.add(key);
+    }
+
+    @Override
+    public void unpin(long key) {
+        pinned.remove(key);
+    }
+
+    @Override
+    public long victim() {
+        long victim = NO_VICTIM;
+        if(a1in.size() > kIn) {
+            victim = oldestUnpinned(a1in);
+        }
+        if(victim == NO_VICTIM) {
+            victim = oldestUnpinned(am);
+        }
+        if(victim == NO_VICTIM) {
+            victim = oldestUnpinned(a1in);
+        }
+        return victim;
+    }
+
+    private long oldestUnpinned(Set<Long> queue) {
+        for (Long key : queue) {
+            if(!pinned.contains(key)) {
+                return key;
+            }
+        }
+        return NO_VICTIM;
+    }
+
+    @Override
+    public void remove(long key) {
+        pinned.remove(key);
+        if(a1in.remove(key)) {
+            a1out.add(key);
+            if(a1out.size() > kOut) {
+                Iterator<Long> it = a1out.iterator();
+                it.next();
+                it.remove();
+            }
+        } else {
+            am.remove(key);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package cn.edu.gzhu.backend.dm;
+
+import cn.edu.gzhu.backend.dm.logger.Logger;
+import cn.edu.gzhu.backend.dm.page.PageCache;
+
+import java.util.Map;
+
+/**
+ * 后台模糊检查点线程，使释放脏页不再需要同步 I/O，并限制崩溃恢复需要重放的日志量
+ * 每隔 INTERVAL 毫秒：
+ *  1. 阻塞修改页面的操作，记下日志末尾的 LSN 和页数，按页号顺序写回在上一次检查点之前就已变脏的页（只写不刷），
+ *     其余脏页连同 recLsn 记入脏页表，连同活跃事务表一起留给下一次检查点；
+ *  2. 放开修改后统一 force 一次；
+ *  3. 写入一条带脏页表和活跃事务表的检查点日志；
+ *  4. 将恢复起点记入日志的控制文件，起点之前的日志段被回收。
+ * redo 只需从 LSN 和脏页表中最小的 recLsn 开始，最多重放约两个间隔的日志；未结束的事务需要 undo，
+ * 其全部日志都要保留，所以恢复起点再与活跃事务的第一条日志位置取较小者。
+ * 关闭和恢复之后做全量检查点，写回所有脏页。
+ */
+class Checkpointer implements Runnable {
+    private static final long INTERVAL = 5000;
+
+    private DataManagerImpl dm;
+    private PageCache pc;
+    private Logger logger;
+
+    // 上一次检查点的 LSN
+    private long lastLsn;
+
+    private Thread thread;
+    private boolean stopped;
+
+    Checkpointer(DataManagerImpl dm) {
+        this.dm = dm;
+        this.pc = dm.pc;
+        this.logger = dm.logger;
+    }
+
+    void start() {
+        thread = new Thread(this, "checkpointer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // 不能中断检查点线程：中断会关闭它正在读写的 FileChannel
+    void stop() {
+        synchronized (this) {
+            stopped = true;
+            notifyAll();
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException ignored) {
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            synchronized (this) {
+                long deadline = System.currentTimeMillis() + INTERVAL;
+                long wait;
+                while (!stopped && (wait = deadline - System.currentTimeMillis()) > 0) {
+                    try {
+                        wait(wait);
+                    } catch (InterruptedException ignored) {
+                    }
+                }
+                if(stopped) {
+                    return;
+                }
+            }
+            checkpoint(false);
+        }
+    }
+
+    void checkpoint(boolean full) {
+        long lsn;
+        int pageCount;
+        Map<Integer, Long> dirtyPages;
+        Map<Long, Long> activeXids;
+        dm.checkpointLock.writeLock().lock();
+        try {
+            lsn = logger.lsn();
+            pageCount = pc.getPageNumber();
+            pc.flushDirtyPages(full ? Long.MAX_VALUE : lastLsn);
+            dirtyPages = pc.dirtyPageTable();
+            activeXids = dm.activeTransactions();
+        } finally {
+            dm.checkpointLock.writeLock().unlock();
+        }
+        pc.sync();
+        long start = lsn;
+        for (long recLsn : dirtyPages.values()) {
+            // recLsn 为 0 的脏页没有日志作用过，不需要重放
+            if(recLsn != 0) {
+                start = Math.min(start, recLsn);
+            }
+        }
+        for (long firstLsn : activeXids.values()) {
+            start = Math.min(start, firstLsn);
+        }
+        logger.log(Recover.checkpointLog(lsn, pageCount, dirtyPages, activeXids));
+        logger.setCheckpoint(start);
+        lastLsn = lsn;
+    }
+}
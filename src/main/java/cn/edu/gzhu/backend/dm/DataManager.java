@@ -6,6 +6,8 @@ import cn.edu.gzhu.backend.dm.page.PageCache;
 import cn.edu.gzhu.backend.dm.page.PageOne;
 import cn.edu.gzhu.backend.tm.TransactionManager;
 
+import java.util.List;
+
 /**
  * DM的主要职责有：
  *  1）分页管理 DB 文件，并进行缓存。
@@ -18,26 +20,32 @@ import cn.edu.gzhu.backend.tm.TransactionManager;
 public interface DataManager {
     DataItem read(long uid) throws Exception;
     long insert(long xid, byte[] data) throws Exception;
+    // 预读提示：这些 uid 即将被读取，异步将其所在的页读入缓存
+    void prefetch(List<Long> uids);
     void close();
 
-    public static DataManager create(String path, long memory, TransactionManager tm){
-        PageCache pc = PageCache.create(path, memory);
-        Logger logger = Logger.create(path);
+    public static DataManager create(String path, long memory, String cachePolicy, String ioMode, long groupCommitDelay, TransactionManager tm){
+        PageCache pc = PageCache.create(path, memory, cachePolicy, ioMode);
+        Logger logger = Logger.create(path, groupCommitDelay);
         DataManagerImpl dm = new DataManagerImpl(pc, logger, tm);
         dm.initPageOne();
+        dm.checkpointer.start();
         return dm;
     }
 
-    public static DataManager open(String path, long memory, TransactionManager tm){
-        PageCache pc = PageCache.open(path, memory);
-        Logger logger = Logger.open(path);
+    public static DataManager open(String path, long memory, String cachePolicy, String ioMode, long groupCommitDelay, TransactionManager tm){
+        PageCache pc = PageCache.open(path, memory, cachePolicy, ioMode);
+        Logger logger = Logger.open(path, groupCommitDelay);
         DataManagerImpl dm = new DataManagerImpl(pc, logger, tm);
         if(!dm.loadCheckPageOne()){
             Recover.recover(tm, logger, pc);
+            // 恢复的结果立即落盘，再次崩溃时不必重复恢复
+            dm.checkpointer.checkpoint(true);
         }
         dm.fillPageIndex();
         PageOne.setVcOpen(dm.pageOne);
         dm.pc.flushPage(dm.pageOne);
+        dm.checkpointer.start();
         return dm;
     }
 }
@@ -15,12 +15,25 @@ import cn.edu.gzhu.backend.utils.Panic;
 import cn.edu.gzhu.backend.utils.Types;
 import cn.edu.gzhu.common.Error;
 
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
 public class DataManagerImpl extends AbstractCache<DataItem> implements DataManager{
     TransactionManager tm;
     PageCache pc;
     Logger logger;
     PageIndex pageIndex;
     Page pageOne;
+    // 修改页面（写日志 + 改页）时持有读锁，检查点写回脏页时持有写锁，保证写回的页不含做了一半的修改
+    ReadWriteLock checkpointLock;
+    Checkpointer checkpointer;
+    // 写过日志的事务的第一条日志的位置（不晚于），检查点据此确定未结束事务的日志从哪里开始必须保留
+    Map<Long, Long> firstLsn;
 
     public DataManagerImpl(PageCache pc, Logger logger, TransactionManager tm) {
         super(0);
@@ -28,6 +41,9 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
         this.logger = logger;
         this.tm = tm;
         this.pageIndex = new PageIndex();
+        this.checkpointLock = new ReentrantReadWriteLock();
+        this.checkpointer = new Checkpointer(this);
+        this.firstLsn = new ConcurrentHashMap<>();
     }
 
     @Override
@@ -52,7 +68,14 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
             if(pageInfo != null){
                 break;
             } else {
-                 int newPageNum = pc.newPage(PageX.initRaw());
+                 // 新页是没有日志的脏页，不能在检查点写回脏页和记下脏页表之间出现
+                 startModify();
+                 int newPageNum;
+                 try {
+                     newPageNum = pc.newPage(PageX.initRaw());
+                 } finally {
+                     endModify();
+                 }
                  pageIndex.add(newPageNum, PageX.MAX_FREE_SPACE);
             }
         }
@@ -63,26 +86,43 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
         int freeSpace = 0;
         try {
             page = pc.getPage(pageInfo.pageNum);
-            byte[] log = Recover.insertLog(xid, page, raw);
-            logger.log(log);
-
-            short offset = PageX.insert(page, raw);
-
-            page.release();
-            return Types.addressToUid(pageInfo.pageNum, offset);
+            startModify();
+            try {
+                byte[] log = Recover.insertLog(xid, page, raw);
+                long lsn = logFor(xid, log);
+
+                short offset = PageX.insert(page, raw);
+                PageX.setPageLsn(page, lsn);
+                return Types.addressToUid(pageInfo.pageNum, offset);
+            } finally {
+                endModify();
+            }
         } finally {
-            // 将取出的 page 重新插入 pageIndex
+            // 将取出的 page 重新插入 pageIndex，页释放后其帧可能被复用，必须在释放前读取空闲空间
             if(page != null){
                 pageIndex.add(pageInfo.pageNum, PageX.getFreeSpace(page));
+                page.release();
             } else {
                 pageIndex.add(pageInfo.pageNum, freeSpace);
             }
         }
     }
 
+    @Override
+    public void prefetch(List<Long> uids) {
+        int[] pageNums = new int[uids.size()];
+        for (int i = 0; i < pageNums.length; i++) {
+            pageNums[i] = (int) (uids.get(i) >>> 32);
+        }
+        pc.prefetch(pageNums);
+    }
+
     @Override
     public void close() {
+        checkpointer.stop();
         super.close();
+        // 所有数据页落盘之后，才能标记为正常关闭；顺便做一次检查点，下次打开时不必保留之前的日志
+        checkpointer.checkpoint(true);
         logger.close();
 
         PageOne.setVcClose(pageOne);
@@ -92,8 +132,42 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
 
     // 为 xid 生成 update 日志
     public void logDataItem(long xid, DataItem dataItem) {
-        byte[] log = Recover.updateLog(xid, dataItem);
-        logger.log(log);
+        byte[] log = Recover.updateLog(xid, dataItem, pc.atomicPageWrite());
+        long lsn = logFor(xid, log);
+        PageX.setPageLsn(dataItem.page(), lsn);
+    }
+
+    // 在修改页面的过程中（持有检查点读锁）为 xid 写日志，返回日志的 LSN
+    private long logFor(long xid, byte[] log) {
+        firstLsn.putIfAbsent(xid, logger.lsn());
+        return logger.log(log);
+    }
+
+    /**
+     * 活跃事务表：未结束的事务及其最早的日志位置；同时清理已结束的事务
+     * 由检查点在持有写锁时调用，此时没有正在写的日志
+     */
+    Map<Long, Long> activeTransactions() {
+        Map<Long, Long> active = new HashMap<>();
+        Iterator<Map.Entry<Long, Long>> it = firstLsn.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, Long> entry = it.next();
+            if(!tm.isActive(entry.getKey())) {
+                it.remove();
+            } else {
+                active.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return active;
+    }
+
+    // 开始修改页面，DataItem 的 before 到 after/unBefore 之间都处于修改中
+    public void startModify() {
+        checkpointLock.readLock().lock();
+    }
+
+    public void endModify() {
+        checkpointLock.readLock().unlock();
     }
 
     public void releaseDataItem(DataItem dataItem){
@@ -0,0 +1,169 @@
+package cn.edu.gzhu.backend.dm;
+
+import cn.edu.gzhu.backend.utils.BufferUtil;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 更新日志的增量编码
+ * 一次更新通常只改动 DataItem 中的一小部分，增量由若干操作组成，按顺序作用在更新前的 DataItem 上：
+ *  [OP_MOVE] [Src] [Dst] [Len]   在 DataItem 内整体移动一段字节，如 B+ 树节点插入时后移的 son/key 对
+ *  [OP_SET] [Off] [Len] [Bytes]  将一段字节设为新值
+ * 偏移和长度都是 2 字节，相对 DataItem 的开头。
+ *
+ * 这两种操作都只能 redo，并且只有作用在恰好处于更新前状态的 DataItem 上才正确，重复作用会把字节再移动一次，
+ * 所以只用于不会被 undo 的 SUPER_XID 更新，且页必须带有 PageLSN，由恢复按 PageLSN 保证每条日志只重放一次。
+ * 这要求整页的写入是原子的：页只写了一半（如前半已是新内容，页尾的 PageLSN 还是旧的）时，
+ * 恢复会把新内容中已经包含的 MOVE 再作用一次。页文件不能保证原子写（-io mmap）时退回改动段编码。
+ *
+ * 事务的更新需要能 undo，只记录改动过的字节段，每段同时带旧值和新值：
+ *  [Off] [Len] [OldBytes] [NewBytes]
+ * 如 Entry.setXMax 只有 8 字节的改动。redo 写入新值，undo 写入旧值，写的都是绝对值，同一条重复作用结果不变；
+ * 但段之外的字节依赖更新前的内容：xmax 从 0x0100 改为 0x0101 时只记录最低的 1 字节，
+ * 若之前把 0 改为 0x0100 的日志没有重放，redo 得到的是 0x0001。所以恢复必须按顺序重放页上的每一条日志，
+ * 包括 aborted 事务的日志。
+ */
+class Delta {
+    static final byte OP_MOVE = 0;
+    static final byte OP_SET = 1;
+
+    // 两段改动之间相同的字节少于这个数时合并为一段，省去一个操作头
+    private static final int GAP = 5;
+    // 检测平移时尝试的最大距离
+    private static final int MAX_SHIFT = 64;
+    // 平移至少覆盖这么多字节才用 MOVE
+    private static final int MIN_MOVE = 16;
+
+    /**
+     * 计算从 oldRaw 到 newRaw 的增量，两者长度相同
+     */
+    static byte[] encode(byte[] oldRaw, byte[] newRaw) {
+        int n = oldRaw.length;
+        int first = 0;
+        while (first < n && oldRaw[first] == newRaw[first]) {
+            first ++;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if(first == n) {
+            return out.toByteArray();
+        }
+        int last = n;
+        while (oldRaw[last - 1] == newRaw[last - 1]) {
+            last --;
+        }
+
+        // 在改动区间的尾部寻找最长的平移：newRaw[i] == oldRaw[i - shift]
+        int moveStart = last, shift = 0;
+        for (int d = -MAX_SHIFT; d <= MAX_SHIFT; d++) {
+            if(d == 0) continue;
+            int t = last;
+            while (t - 1 >= first && t - 1 - d >= 0 && t - 1 - d < n && newRaw[t - 1] == oldRaw[t - 1 - d]) {
+                t --;
+            }
+            if(t < moveStart) {
+                moveStart = t;
+                shift = d;
+            }
+        }
+        int end = last;
+        if(last - moveStart >= MIN_MOVE) {
+            out.write(OP_MOVE);
+            writeShort(out, moveStart - shift);
+            writeShort(out, moveStart);
+            writeShort(out, last - moveStart);
+            end = moveStart;
+        }
+
+        // MOVE 不会改动 [first, end)，剩下的差异逐段写成 SET
+        for (int[] range : diffRanges(oldRaw, newRaw, first, end)) {
+            out.write(OP_SET);
+            writeShort(out, range[0]);
+            writeShort(out, range[1]);
+            out.write(newRaw, range[0], range[1]);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * 只记录改动过的字节段及其旧值和新值，两者长度相同
+     */
+    static byte[] encodeRanges(byte[] oldRaw, byte[] newRaw) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int[] range : diffRanges(oldRaw, newRaw, 0, oldRaw.length)) {
+            writeShort(out, range[0]);
+            writeShort(out, range[1]);
+            out.write(oldRaw, range[0], range[1]);
+            out.write(newRaw, range[0], range[1]);
+        }
+        return out.toByteArray();
+    }
+
+    // [from, to) 内的差异段 {off, len}，中间相同的字节少于 GAP 个时合并为一段
+    private static List<int[]> diffRanges(byte[] oldRaw, byte[] newRaw, int from, int to) {
+        List<int[]> ranges = new ArrayList<>();
+        int i = from;
+        while (i < to) {
+            if(oldRaw[i] == newRaw[i]) {
+                i ++;
+                continue;
+            }
+            // 向后延伸，直到遇到连续 GAP 个相同的字节
+            int j = i + 1, same = 0;
+            for (int k = j; k < to && same < GAP; k++) {
+                if(oldRaw[k] == newRaw[k]) {
+                    same ++;
+                } else {
+                    same = 0;
+                    j = k + 1;
+                }
+            }
+            ranges.add(new int[]{i, j - i});
+            i = j;
+        }
+        return ranges;
+    }
+
+    /**
+     * 将增量作用在 data 中从 base 开始的 DataItem 上
+     */
+    static void redo(ByteBuffer data, int base, byte[] delta) {
+        ByteBuffer buf = ByteBuffer.wrap(delta);
+        while (buf.hasRemaining()) {
+            byte op = buf.get();
+            if(op == OP_MOVE) {
+                int src = Short.toUnsignedInt(buf.getShort());
+                int dst = Short.toUnsignedInt(buf.getShort());
+                int len = Short.toUnsignedInt(buf.getShort());
+                BufferUtil.move(data, base + src, base + dst, len);
+            } else {
+                int off = Short.toUnsignedInt(buf.getShort());
+                int len = Short.toUnsignedInt(buf.getShort());
+                BufferUtil.put(data, base + off, delta, buf.position(), len);
+                buf.position(buf.position() + len);
+            }
+        }
+    }
+
+    /**
+     * 将 encodeRanges 的结果作用在 data 中从 base 开始的 DataItem 上，redo 写入新值，undo 写入旧值
+     */
+    static void applyRanges(ByteBuffer data, int base, byte[] ranges, boolean redo) {
+        ByteBuffer buf = ByteBuffer.wrap(ranges);
+        while (buf.hasRemaining()) {
+            int off = Short.toUnsignedInt(buf.getShort());
+            int len = Short.toUnsignedInt(buf.getShort());
+            // 旧值在前，新值在后
+            int from = redo ? buf.position() + len : buf.position();
+            BufferUtil.put(data, base + off, ranges, from, len);
+            buf.position(buf.position() + 2 * len);
+        }
+    }
+
+    private static void writeShort(ByteArrayOutputStream out, int value) {
+        out.write(value >>> 8);
+        out.write(value);
+    }
+}
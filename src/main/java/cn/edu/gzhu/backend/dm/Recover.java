@@ -7,12 +7,17 @@ import cn.edu.gzhu.backend.dm.page.Page;
 import cn.edu.gzhu.backend.dm.page.PageCache;
 import cn.edu.gzhu.backend.dm.page.PageX;
 import cn.edu.gzhu.backend.tm.TransactionManager;
+import cn.edu.gzhu.backend.tm.impl.TransactionManagerImpl;
+import cn.edu.gzhu.backend.utils.BufferUtil;
 import cn.edu.gzhu.backend.utils.Panic;
 import cn.edu.gzhu.backend.utils.Parser;
 import com.google.common.primitives.Bytes;
 import org.checkerframework.checker.units.qual.A;
 
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * 在进行 插入和更新 操作之前，必须先进行对于的日志操作，在保证日志写入磁盘后，才进行数据操作。
@@ -26,43 +31,69 @@ import java.util.*;
 public class Recover {
     private static final byte LOG_TYPE_INSERT = 0;
     private static final byte LOG_TYPE_UPDATE = 1;
+    private static final byte LOG_TYPE_CHECKPOINT = 2;
+    private static final byte LOG_TYPE_UPDATE_DELTA = 3;
+    private static final byte LOG_TYPE_UPDATE_RANGES = 4;
 
-    private static final int REDO = 0;
-    private static final int UNDO = 1;
-
-    static class InsertLogInfo {
+    // 数据日志解析后的公共部分，分析时每条日志只解析一次
+    static class LogInfo {
+        long lsn;
         long xid;
         int pageNum;
         short offset;
+    }
+
+    static class InsertLogInfo extends LogInfo {
         byte[] raw;
     }
 
-    static class UpdateLogInfo {
-        long xid;
-        int pageNum;
-        short offset;
+    static class UpdateLogInfo extends LogInfo {
         byte[] oldRaw;
         byte[] newRaw;
+        // 增量日志只有 delta，只能 redo
+        byte[] delta;
+        // 改动段日志只有 ranges，其中带有旧值和新值
+        byte[] ranges;
     }
 
+    // 最后一个检查点：脏页表和活跃事务表
+    static class CheckpointInfo {
+        long lsn;
+        int pageCount;
+        // 页号 -> recLsn
+        Map<Integer, Long> dirtyPages = new HashMap<>();
+        // xid -> 第一条日志的位置
+        Map<Long, Long> activeXids = new HashMap<>();
+    }
+
+    /**
+     * 恢复只读一遍日志：
+     *  1. 分析：解析所有数据日志，找出最大页号和最后一个检查点；
+     *  2. 按页分出 redo 列表（所有事务的日志）、按未结束的事务分出 undo 列表，列表内保持日志顺序；
+     *  3. 不同页的 redo 互不相关，在 ForkJoinPool 中并行重放，每页只取一次；
+     *  4. 逐个事务倒序 undo，然后将其标记为 aborted。
+     * 解析出的日志暂存在内存中，其数量受模糊检查点限制，约为两个检查点间隔内写入的日志。
+     */
     public static void recover(TransactionManager tm, Logger logger, PageCache pageCache){
         System.out.println("Recovering ...");
-        logger.rewind();
+        List<LogInfo> logs = new ArrayList<>();
+        CheckpointInfo checkpoint = null;
         int maxPageNum = 0;
+        logger.rewind();
         while (true) {
-            byte[] log = logger.next();
+            // 直接在日志的映射上解析，只复制数据部分
+            ByteBuffer log = logger.nextView();
             if(log == null) break;
-            int pageNum;
-            if(isInsertLog(log)){
-                InsertLogInfo insertLogInfo = parseInsertLog(log);
-                pageNum = insertLogInfo.pageNum;
-            } else {
-                UpdateLogInfo updateLogInfo = parseUpdateLog(log);
-                pageNum = updateLogInfo.pageNum;
-            }
-            if(pageNum > maxPageNum){
-                maxPageNum = pageNum;
+            if(isCheckpointLog(log)) {
+                // 检查点之前的日志可能已被回收，检查点时的页数保证已落盘的页不被截掉
+                checkpoint = parseCheckpointLog(log);
+                maxPageNum = Math.max(maxPageNum, checkpoint.pageCount);
+                continue;
             }
+            LogInfo info = isInsertLog(log) ? parseInsertLog(log) : parseUpdateLog(log);
+            info.lsn = logger.lastLsn();
+            maxPageNum = Math.max(maxPageNum, info.pageNum);
+            logs.add(info);
         }
         if(maxPageNum == 0){
             maxPageNum = 1;
@@ -70,133 +101,200 @@ public class Recover {
         pageCache.truncateByPageNum(maxPageNum);
         System.out.println("Truncate to " + maxPageNum + " pages.");
 
-        redoTransactions(tm, logger, pageCache);
+        Map<Integer, List<LogInfo>> redoLists = new HashMap<>();
+        Map<Long, List<LogInfo>> undoLists = new HashMap<>();
+        Map<Long, Byte> status = new HashMap<>();
+        for (LogInfo info : logs) {
+            byte state = status.computeIfAbsent(info.xid, xid -> xidStatus(tm, xid));
+            // 不论事务的状态都要 redo：改动段日志只写改动过的字节，依赖之前的日志都已作用在页上，
+            // 跳过 aborted 事务的更新会让之后的事务写在错误的旧值上。aborted 的修改对 VM 本来就不可见
+            if(needRedo(checkpoint, info.pageNum, info.lsn)) {
+                redoLists.computeIfAbsent(info.pageNum, k -> new ArrayList<>()).add(info);
+            }
+            if(state == ACTIVE && needUndo(checkpoint, info.xid, info.lsn)) {
+                undoLists.computeIfAbsent(info.xid, k -> new ArrayList<>()).add(info);
+            }
+        }
+
+        redoTransactions(pageCache, redoLists);
         System.out.println("Redo Transactions Over.");
 
-        undoTransactions(tm, logger, pageCache);
+        undoTransactions(tm, pageCache, undoLists);
         System.out.println("Undo Transactions Over.");
 
         System.out.println("Recovery Over.");
     }
 
-    private static void redoTransactions(TransactionManager tm, Logger logger, PageCache pageCache) {
-        logger.rewind();
-        while (true) {
-            byte[] log = logger.next();
-            if(log == null) break;
-            if(isInsertLog(log)){
-                InsertLogInfo insertLogInfo = parseInsertLog(log);
-                long xid = insertLogInfo.xid;
-                if(!tm.isActive(xid)){
-                    doInsertLog(pageCache, log, REDO);
-                }
-            } else{
-                UpdateLogInfo updateLogInfo = parseUpdateLog(log);
-                long xid = updateLogInfo.xid;
-                if(!tm.isAborted(xid)){
-                    doUpdateLog(pageCache, log, REDO);
-                }
-            }
+    private static final byte ACTIVE = 0;
+    private static final byte COMMITTED = 1;
+    private static final byte ABORTED = 2;
+
+    private static byte xidStatus(TransactionManager tm, long xid) {
+        if(tm.isActive(xid)) {
+            return ACTIVE;
         }
+        return tm.isAborted(xid) ? ABORTED : COMMITTED;
     }
 
-    private static void undoTransactions(TransactionManager tm, Logger logger, PageCache pageCache) {
-        Map<Long, List<byte[]>> logCache = new HashMap<>();
-        logger.rewind();
-        while (true) {
-            byte[] log = logger.next();
-            if(log == null) break;
-            if(isInsertLog(log)){
-                InsertLogInfo insertLogInfo = parseInsertLog(log);
-                long xid = insertLogInfo.xid;
-                if(tm.isActive(xid)) {
-                    if(!logCache.containsKey(xid)){
-                        logCache.put(xid, new ArrayList<>());
-                    }
-                    logCache.get(xid).add(log);
+    /**
+     * 检查点之前的日志，只有作用的页在脏页表中、且不早于该页的 recLsn 时才可能没有落盘；
+     * 其余的日志交给 PageLSN 判断
+     */
+    private static boolean needRedo(CheckpointInfo checkpoint, int pageNum, long lsn) {
+        if(checkpoint == null || lsn >= checkpoint.lsn) {
+            return true;
+        }
+        Long recLsn = checkpoint.dirtyPages.get(pageNum);
+        return recLsn != null && lsn >= recLsn;
+    }
+
+    // 检查点之前的日志只属于活跃事务表中的事务时才需要 undo
+    private static boolean needUndo(CheckpointInfo checkpoint, long xid, long lsn) {
+        return checkpoint == null || lsn >= checkpoint.lsn || checkpoint.activeXids.containsKey(xid);
+    }
+
+    private static void redoTransactions(PageCache pageCache, Map<Integer, List<LogInfo>> redoLists) {
+        ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        try {
+            pool.submit(() -> redoLists.entrySet().parallelStream()
+                    .forEach(entry -> redoPage(pageCache, entry.getKey(), entry.getValue()))).get();
+        } catch (InterruptedException | ExecutionException e) {
+            Panic.panic(e);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * 同一页的日志由一个线程按顺序重放，PageLSN 不早于日志位置时说明修改已经在页上。
+     * 页的写入不是原子的（mmap）时，页可能只落盘了一部分：PageLSN 所在的后半页是新的，前半页却还是旧的，
+     * 此时不能相信 PageLSN，要按顺序重放全部日志。插入、整体更新和改动段日志都写入确定的新值，重放多次结果相同；
+     * 增量日志不能重复作用，但它只在页写入原子时才会写出，所以列表中有增量日志时仍按 PageLSN 跳过。
+     */
+    private static void redoPage(PageCache pageCache, int pageNum, List<LogInfo> logs) {
+        boolean trustPageLsn = pageCache.atomicPageWrite() || logs.stream().anyMatch(Recover::isDelta);
+        Page page = getPage(pageCache, pageNum);
+        try {
+            for (LogInfo info : logs) {
+                if(trustPageLsn && PageX.getPageLsn(page) >= info.lsn) {
+                    continue;
                 }
-            } else {
-                UpdateLogInfo updateLogInfo = parseUpdateLog(log);
-                long xid = updateLogInfo.xid;
-                if(tm.isActive(xid)){
-                    if(!logCache.containsKey(xid)){
-                        logCache.put(xid, new ArrayList<>());
-                    }
-                    logCache.get(xid).add(log);
+                if(info instanceof InsertLogInfo) {
+                    PageX.recoverInsert(page, ((InsertLogInfo) info).raw, info.offset);
+                } else {
+                    recoverUpdate(page, (UpdateLogInfo) info, true);
                 }
+                PageX.setPageLsn(page, info.lsn);
             }
+        } finally {
+            page.release();
         }
+    }
 
+    private static boolean isDelta(LogInfo info) {
+        return info instanceof UpdateLogInfo && ((UpdateLogInfo) info).delta != null;
+    }
+
+    private static void undoTransactions(TransactionManager tm, PageCache pageCache, Map<Long, List<LogInfo>> undoLists) {
         // 对所有 active log 进行倒序 undo
-        for (Map.Entry<Long, List<byte[]>> entry : logCache.entrySet()) {
-            List<byte[]> logs = entry.getValue();
+        for (Map.Entry<Long, List<LogInfo>> entry : undoLists.entrySet()) {
+            List<LogInfo> logs = entry.getValue();
             for (int i = logs.size() - 1; i >= 0 ; i--) {
-                byte[] log = logs.get(i);
-                if(isInsertLog(log)){
-                    doInsertLog(pageCache, log, UNDO);
-                } else {
-                    doUpdateLog(pageCache, log, UNDO);
+                LogInfo info = logs.get(i);
+                Page page = getPage(pageCache, info.pageNum);
+                try {
+                    if(info instanceof InsertLogInfo) {
+                        byte[] raw = ((InsertLogInfo) info).raw;
+                        DataItem.setDataItemRawInvalid(raw);
+                        PageX.recoverInsert(page, raw, info.offset);
+                    } else {
+                        recoverUpdate(page, (UpdateLogInfo) info, false);
+                    }
+                } finally {
+                    page.release();
                 }
             }
             tm.abort(entry.getKey());
         }
     }
 
+    private static void recoverUpdate(Page page, UpdateLogInfo info, boolean redo) {
+        if(info.ranges != null) {
+            page.setDirty(true);
+            Delta.applyRanges(page.getData(), info.offset, info.ranges, redo);
+        } else if(info.delta != null) {
+            // 增量日志只属于 SUPER_XID，不会被 undo
+            if(redo) {
+                page.setDirty(true);
+                Delta.redo(page.getData(), info.offset, info.delta);
+            }
+        } else {
+            PageX.recoverUpdate(page, redo ? info.newRaw : info.oldRaw, info.offset);
+        }
+    }
+
+    private static Page getPage(PageCache pageCache, int pageNum) {
+        Page page = null;
+        try {
+            page = pageCache.getPage(pageNum);
+        } catch (Exception e){
+            Panic.panic(e);
+        }
+        return page;
+    }
+
     // [LogType] [XID] [UID] [OldRaw] [NewRaw]
+    // 增量日志和改动段日志的 [OldRaw] [NewRaw] 换为 Delta 的编码，见 Delta
     private static final int OF_TYPE = 0;
     private static final int OF_XID = OF_TYPE + 1;
     private static final int OF_UPDATE_UID = OF_XID + 8;
     private static final int OF_UPDATE_RAW = OF_UPDATE_UID + 8;
 
-    public static byte[] updateLog(long xid, DataItem dataItem){
-        byte[] logType = {LOG_TYPE_UPDATE};
+    public static byte[] updateLog(long xid, DataItem dataItem, boolean atomicPageWrite){
         byte[] xidRaw = Parser.long2Byte(xid);
         byte[] uidRaw = Parser.long2Byte(dataItem.getUid());
         byte[] oldRaw = dataItem.getOldRaw();
         SubArray raw = dataItem.getRaw();
-        byte[] newRaw = Arrays.copyOfRange(raw.raw, raw.start, raw.end);
-        return Bytes.concat(logType, xidRaw, uidRaw, oldRaw, newRaw);
+        byte[] newRaw = BufferUtil.copyOfRange(raw.raw, raw.start, raw.end);
+        // SUPER_XID 的更新（B+ 树节点）不会被 undo，页有 PageLSN 且整页写入是原子的时只记录增量，见 Delta
+        if(xid == TransactionManagerImpl.SUPER_XID && atomicPageWrite && PageX.hasPageLsn(dataItem.page())) {
+            byte[] delta = Delta.encode(oldRaw, newRaw);
+            if(delta.length < oldRaw.length * 2) {
+                return Bytes.concat(new byte[]{LOG_TYPE_UPDATE_DELTA}, xidRaw, uidRaw, delta);
+            }
+        }
+        // 其余更新只记录改动过的字节段
+        return Bytes.concat(new byte[]{LOG_TYPE_UPDATE_RANGES}, xidRaw, uidRaw, Delta.encodeRanges(oldRaw, newRaw));
     }
 
-    private static UpdateLogInfo parseUpdateLog(byte[] log) {
+    private static UpdateLogInfo parseUpdateLog(ByteBuffer log) {
+        int base = log.position();
         UpdateLogInfo updateLogInfo = new UpdateLogInfo();
-        updateLogInfo.xid = Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_UPDATE_UID));
-        long uid = Parser.parseLong(Arrays.copyOfRange(log, OF_UPDATE_UID, OF_UPDATE_RAW));
+        updateLogInfo.xid = log.getLong(base + OF_XID);
+        long uid = log.getLong(base + OF_UPDATE_UID);
         updateLogInfo.offset = (short) (uid & ((1L << 16) - 1));
         uid >>>= 32;
         updateLogInfo.pageNum = (int)(uid & ((1L << 32) - 1));
-        int length = (log.length - OF_UPDATE_RAW) / 2;
-        updateLogInfo.oldRaw = Arrays.copyOfRange(log, OF_UPDATE_RAW, OF_UPDATE_RAW + length);
-        updateLogInfo.newRaw = Arrays.copyOfRange(log, OF_UPDATE_RAW + length, OF_UPDATE_RAW + length * 2);
-        return updateLogInfo;
-    }
-
-    private static void doUpdateLog(PageCache pageCache, byte[] log, int flag) {
-        int pageNum;
-        short offset;
-        byte[] raw;
-        if(flag == REDO){
-            UpdateLogInfo updateLogInfo = parseUpdateLog(log);
-            pageNum = updateLogInfo.pageNum;
-            offset = updateLogInfo.offset;
-            raw = updateLogInfo.newRaw;
-        } else {
-            UpdateLogInfo updateLogInfo = parseUpdateLog(log);
-            pageNum = updateLogInfo.pageNum;
-            offset = updateLogInfo.offset;
-            raw = updateLogInfo.oldRaw;
-        }
-        Page page = null;
-        try {
-            page = pageCache.getPage(pageNum);
-        } catch (Exception e){
-            Panic.panic(e);
-        }
-        try {
-            PageX.recoverUpdate(page, raw, offset);
-        } finally {
-            page.release();
+        byte type = log.get(base);
+        if(type == LOG_TYPE_UPDATE_DELTA || type == LOG_TYPE_UPDATE_RANGES) {
+            // [LogType] [XID] [UID] [Delta/Ranges]
+            byte[] delta = new byte[log.limit() - base - OF_UPDATE_RAW];
+            log.position(base + OF_UPDATE_RAW);
+            log.get(delta);
+            if(type == LOG_TYPE_UPDATE_DELTA) {
+                updateLogInfo.delta = delta;
+            } else {
+                updateLogInfo.ranges = delta;
+            }
+            return updateLogInfo;
         }
+        int length = (log.limit() - base - OF_UPDATE_RAW) / 2;
+        updateLogInfo.oldRaw = new byte[length];
+        updateLogInfo.newRaw = new byte[length];
+        log.position(base + OF_UPDATE_RAW);
+        log.get(updateLogInfo.oldRaw);
+        log.get(updateLogInfo.newRaw);
+        return updateLogInfo;
     }
 
     // [LogType] [XID] [PageNum] [Offset] [Raw]
@@ -212,34 +310,68 @@ public class Recover {
         return Bytes.concat(logTypeRaw, xidRaw, pageNumRaw, offsetRaw, raw);
     }
 
-    private static InsertLogInfo parseInsertLog(byte[] log) {
+    private static InsertLogInfo parseInsertLog(ByteBuffer log) {
+        int base = log.position();
         InsertLogInfo insertLogInfo = new InsertLogInfo();
-        insertLogInfo.xid = Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_INSERT_PAGE_NUM));
-        insertLogInfo.pageNum = Parser.parseInt(Arrays.copyOfRange(log, OF_INSERT_PAGE_NUM, OF_INSERT_OFFSET));
-        insertLogInfo.offset = Parser.parseShort(Arrays.copyOfRange(log, OF_INSERT_OFFSET, OF_INSERT_RAW));
-        insertLogInfo.raw = Arrays.copyOfRange(log, OF_INSERT_RAW, log.length);
+        insertLogInfo.xid = log.getLong(base + OF_XID);
+        insertLogInfo.pageNum = log.getInt(base + OF_INSERT_PAGE_NUM);
+        insertLogInfo.offset = log.getShort(base + OF_INSERT_OFFSET);
+        insertLogInfo.raw = new byte[log.limit() - base - OF_INSERT_RAW];
+        log.position(base + OF_INSERT_RAW);
+        log.get(insertLogInfo.raw);
         return insertLogInfo;
     }
 
-    private static boolean isInsertLog(byte[] log) {
-        return log[0] == LOG_TYPE_INSERT;
+    private static boolean isInsertLog(ByteBuffer log) {
+        return log.get(log.position()) == LOG_TYPE_INSERT;
     }
 
-    private static void doInsertLog(PageCache pageCache, byte[] log, int flag) {
-        InsertLogInfo insertLogInfo = parseInsertLog(log);
-        Page page = null;
-        try {
-            page = pageCache.getPage(insertLogInfo.pageNum);
-        } catch (Exception e){
-            Panic.panic(e);
+    private static final int OF_CHECKPOINT_LSN = OF_TYPE + 1;
+    private static final int OF_CHECKPOINT_PAGES = OF_CHECKPOINT_LSN + 8;
+    private static final int OF_CHECKPOINT_DPT = OF_CHECKPOINT_PAGES + 4;
+
+    // [LogType] [LSN] [PageCount] [DPTCount] [PageNum RecLSN]* [ATTCount] [XID FirstLSN]*
+    // 检查点日志：LSN 之前的日志所做的修改，除脏页表中的页自 RecLSN 起的修改外都已经写回并落盘；
+    // 此时 DB 文件共有 PageCount 页，活跃事务表记录未结束事务的第一条日志位置
+    public static byte[] checkpointLog(long lsn, int pageCount, Map<Integer, Long> dirtyPages, Map<Long, Long> activeXids) {
+        ByteBuffer buf = ByteBuffer.allocate(OF_CHECKPOINT_DPT + 4 + dirtyPages.size() * 12 + 4 + activeXids.size() * 16);
+        buf.put(LOG_TYPE_CHECKPOINT).putLong(lsn).putInt(pageCount);
+        buf.putInt(dirtyPages.size());
+        for (Map.Entry<Integer, Long> entry : dirtyPages.entrySet()) {
+            buf.putInt(entry.getKey()).putLong(entry.getValue());
         }
-        try {
-            if(flag == UNDO){
-                DataItem.setDataItemRawInvalid(insertLogInfo.raw);
-            }
-            PageX.recoverInsert(page, insertLogInfo.raw, insertLogInfo.offset);
-        } finally {
-            page.release();
+        buf.putInt(activeXids.size());
+        for (Map.Entry<Long, Long> entry : activeXids.entrySet()) {
+            buf.putLong(entry.getKey()).putLong(entry.getValue());
+        }
+        return buf.array();
+    }
+
+    private static boolean isCheckpointLog(ByteBuffer log) {
+        return log.get(log.position()) == LOG_TYPE_CHECKPOINT;
+    }
+
+    private static CheckpointInfo parseCheckpointLog(ByteBuffer buf) {
+        CheckpointInfo info = new CheckpointInfo();
+        buf.position(buf.position() + OF_CHECKPOINT_LSN);
+        info.lsn = buf.getLong();
+        // 早期的检查点日志没有 PageCount 和脏页表，那时检查点会写回全部脏页
+        if(buf.remaining() < 4) {
+            return info;
+        }
+        info.pageCount = buf.getInt();
+        if(buf.remaining() < 4) {
+            return info;
         }
+        int dirtyCount = buf.getInt();
+        for (int i = 0; i < dirtyCount; i++) {
+            info.dirtyPages.put(buf.getInt(), buf.getLong());
+        }
+        int activeCount = buf.getInt();
+        for (int i = 0; i < activeCount; i++) {
+            info.activeXids.put(buf.getLong(), buf.getLong());
+        }
+        return info;
     }
+
 }
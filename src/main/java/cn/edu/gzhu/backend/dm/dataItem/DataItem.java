@@ -8,7 +8,7 @@ import cn.edu.gzhu.backend.utils.Parser;
 import cn.edu.gzhu.backend.utils.Types;
 import com.google.common.primitives.Bytes;
 
-import java.util.Arrays;
+import java.nio.ByteBuffer;
 
 public interface DataItem {
     SubArray data();
@@ -45,8 +45,8 @@ public interface DataItem {
 
     // 从页面的 offset 处解析出 dataItem
     public static DataItem parserDataItem(Page page, short offset, DataManagerImpl dataManager){
-        byte[] raw = page.getData();
-        short size = Parser.parseShort(Arrays.copyOfRange(raw, offset+DataItemImpl.OF_SIZE, offset+DataItemImpl.OF_DATA));
+        ByteBuffer raw = page.getData();
+        short size = raw.getShort(offset+DataItemImpl.OF_SIZE);
         short length = (short)(size + DataItemImpl.OF_DATA);
         long uid = Types.addressToUid(page.getPageNumber(), offset);
         return new DataItemImpl(new SubArray(raw, offset, offset+length), new byte[length], page, uid, dataManager);
@@ -4,6 +4,7 @@ import cn.edu.gzhu.backend.common.SubArray;
 import cn.edu.gzhu.backend.dm.DataManagerImpl;
 import cn.edu.gzhu.backend.dm.dataItem.DataItem;
 import cn.edu.gzhu.backend.dm.page.Page;
+import cn.edu.gzhu.backend.utils.BufferUtil;
 
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
@@ -47,22 +48,30 @@ public class DataItemImpl implements DataItem {
         return new SubArray(raw.raw, raw.start + OF_DATA, raw.end);
     }
 
+    // 先进入修改状态再加写锁，避免持有写锁时等待检查点
     @Override
     public void before() {
+        dm.startModify();
         wLock.lock();
         page.setDirty(true);
-        System.arraycopy(raw.raw, raw.start, oldRaw, 0, oldRaw.length);
+        BufferUtil.get(raw.raw, raw.start, oldRaw);
     }
 
     @Override
     public void unBefore() {
-        System.arraycopy(oldRaw, 0, raw.raw, raw.start, oldRaw.length);
+        BufferUtil.put(raw.raw, raw.start, oldRaw);
         wLock.unlock();
+        dm.endModify();
     }
 
     @Override
     public void after(long xid) {
-        dm.logDataItem(xid, this);
+        try {
+            dm.logDataItem(xid, this);
+        } finally {
+            wLock.unlock();
+            dm.endModify();
+        }
     }
 
     @Override
@@ -111,6 +120,6 @@ public class DataItemImpl implements DataItem {
     }
 
     public boolean isValid() {
-        return raw.raw[raw.start + OF_VALID] == (byte) 0;
+        return raw.raw.get(raw.start + OF_VALID) == (byte) 0;
     }
 }
@@ -1,28 +1,43 @@
 package cn.edu.gzhu.backend.dm.logger;
 
+import cn.edu.gzhu.backend.dm.logger.impl.LegacyLog;
 import cn.edu.gzhu.backend.dm.logger.impl.LoggerImpl;
 import cn.edu.gzhu.backend.utils.Panic;
 
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
-import java.util.Random;
 
-import cn.edu.gzhu.backend.utils.Parser;
 import cn.edu.gzhu.common.Error;
 
 public interface Logger {
-    void log(byte[] data);
+    // 写入一条日志，返回它的 LSN
+    long log(byte[] data);
+    // 日志末尾的位置（LSN），下一条日志从这里开始写
+    long lsn();
+    // 记录检查点位置：恢复从 lsn 开始读日志，lsn 所在段之前的段被回收
+    void setCheckpoint(long lsn);
     void truncate(long x) throws Exception;
     byte[] next();
+    // 与 next 相同但不复制：返回映射在日志段上的只读视图，position 到 limit 为日志内容，下一次读取时失效
+    ByteBuffer nextView();
+    // 上一次 next 返回的日志的 LSN
+    long lastLsn();
     void rewind();
     void close();
 
     public static Logger create(String path){
-        File file = new File(path + LoggerImpl.LOG_SUFFIX);
+        return create(path, LoggerImpl.DEFAULT_GROUP_COMMIT_DELAY);
+    }
+
+    // groupCommitDelay：攒一批日志最多等待的微秒数，见 LoggerImpl
+    public static Logger create(String path, long groupCommitDelay){
+        File file = LoggerImpl.segmentFile(path, 1);
+        if(new File(path + LoggerImpl.CONTROL_SUFFIX).exists()){
+            Panic.panic(Error.FileExistsException);
+        }
         try{
             if(!file.createNewFile()){
                 Panic.panic(Error.FileExistsException);
@@ -33,42 +48,33 @@ public interface Logger {
         if(!file.canRead() || !file.canWrite()){
             Panic.panic(Error.FileCannotRWException);
         }
-        FileChannel fc = null;
-        RandomAccessFile raf = null;
-        try{
-            raf = new RandomAccessFile(file, "rw");
-            fc = raf.getChannel();
-        } catch (FileNotFoundException e){
-            Panic.panic(e);
-        }
-        ByteBuffer buf = ByteBuffer.wrap(Parser.int2Byte(0));
-        try {
-            fc.position(0);
-            fc.write(buf);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            FileChannel fc = raf.getChannel();
+            fc.write(ByteBuffer.wrap(LoggerImpl.segmentHeader(1)), 0);
             fc.force(false);
         } catch (IOException e){
             Panic.panic(e);
         }
-        return new LoggerImpl(raf, fc, 0);
+        LoggerImpl.writeControl(path, LoggerImpl.FIRST_LSN);
+        LoggerImpl lg = new LoggerImpl(path, groupCommitDelay, LoggerImpl.DEFAULT_COMPRESS_THRESHOLD);
+        lg.init();
+        return lg;
     }
 
     public static Logger open(String path){
-        File file = new File(path + LoggerImpl.LOG_SUFFIX);
+        return open(path, LoggerImpl.DEFAULT_GROUP_COMMIT_DELAY);
+    }
+
+    public static Logger open(String path, long groupCommitDelay){
+        LegacyLog.upgrade(path);
+        File file = new File(path + LoggerImpl.CONTROL_SUFFIX);
         if(!file.exists()){
             Panic.panic(Error.FileNotExistsException);
         }
         if(!file.canRead() || !file.canWrite()){
             Panic.panic(Error.FileCannotRWException);
         }
-        FileChannel fc = null;
-        RandomAccessFile raf = null;
-        try{
-            raf = new RandomAccessFile(file, "rw");
-            fc = raf.getChannel();
-        } catch (FileNotFoundException e){
-            Panic.panic(e);
-        }
-        LoggerImpl lg = new LoggerImpl(raf, fc);
+        LoggerImpl lg = new LoggerImpl(path, groupCommitDelay, LoggerImpl.DEFAULT_COMPRESS_THRESHOLD);
         lg.init();
         return lg;
     }
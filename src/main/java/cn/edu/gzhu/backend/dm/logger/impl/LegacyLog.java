@@ -0,0 +1,191 @@
+package cn.edu.gzhu.backend.dm.logger.impl;
+
+import cn.edu.gzhu.backend.utils.Panic;
+import cn.edu.gzhu.backend.utils.Parser;
+import cn.edu.gzhu.common.Error;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * 旧格式单文件日志 name.log 的兼容读取
+ *
+ * v1 格式为：
+ * [XChecksum] [Log1] [Log2] ... [LogN] [BadTail]
+ * XChecksum 为所有日志累积计算的校验和，每写一条日志就要回到文件头改写一次。
+ * 每条日志为 [Size] [Checksum] [Data]，Checksum 为 Data 的累积校验和。
+ *
+ * v2 格式为：
+ * [Magic] [Version] [Checkpoint] [Log1] [Log2] ... [LogN] [BadTail]
+ * 每条日志为 [Size] [Checksum] [Data]，Checksum 为 Size 和 Data 的 CRC32。
+ *
+ * 打开时若存在 name.log，校验后逐条转换写入段文件，写好控制文件后再删除 name.log；
+ * 转换过程中崩溃不影响原文件，下次打开时丢弃转换了一半的段重新转换。
+ */
+public class LegacyLog {
+    private static final int SEED = 13331;
+
+    private static final int V2_HEADER_SIZE = 16;
+
+    private static final int OF_SIZE = 0;
+    private static final int OF_CHECKSUM = OF_SIZE + 4;
+    private static final int OF_DATA = OF_CHECKSUM + 4;
+
+    /**
+     * 如果 path 下存在旧格式的日志，将其转换为段文件
+     */
+    public static void upgrade(String path) {
+        File file = new File(path + LoggerImpl.LOG_SUFFIX);
+        if(!file.exists()) {
+            return;
+        }
+        for (File f : LoggerImpl.listSegments(path).values()) {
+            f.delete();
+        }
+        new File(path + LoggerImpl.CONTROL_SUFFIX).delete();
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            FileChannel fc = raf.getChannel();
+            boolean v1 = isV1(fc);
+            long position = v1 ? 4 : V2_HEADER_SIZE;
+            if(v1) {
+                checkXCheckSum(fc);
+            }
+            SegmentWriter writer = new SegmentWriter(path);
+            while (true) {
+                byte[] data = v1 ? nextV1(fc, position) : nextV2(fc, position);
+                if(data == null) break;
+                position += OF_DATA + data.length;
+                writer.append(data);
+            }
+            writer.close();
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        LoggerImpl.writeControl(path, LoggerImpl.FIRST_LSN);
+        if(!file.delete()) {
+            Panic.panic(Error.FileCannotRWException);
+        }
+    }
+
+    // 依次写入段文件，不经过组提交，最后统一落盘
+    static class SegmentWriter {
+        String path;
+        long segNo;
+        long offset;
+        RandomAccessFile file;
+
+        SegmentWriter(String path) throws IOException {
+            this.path = path;
+            open(1);
+        }
+
+        void open(long segNo) throws IOException {
+            if(file != null) {
+                close();
+            }
+            this.segNo = segNo;
+            file = new RandomAccessFile(LoggerImpl.segmentFile(path, segNo), "rw");
+            file.setLength(0);
+            file.write(LoggerImpl.segmentHeader(segNo));
+            offset = LoggerImpl.HEADER_SIZE;
+        }
+
+        void append(byte[] data) throws IOException {
+            byte[] log = LoggerImpl.warpLog(data);
+            if(offset + log.length > LoggerImpl.SEGMENT_SIZE) {
+                open(segNo + 1);
+            }
+            LoggerImpl.sealLog(log, segNo);
+            file.write(log);
+            offset += log.length;
+        }
+
+        void close() throws IOException {
+            file.getChannel().force(false);
+            file.close();
+        }
+    }
+
+    private static boolean isV1(FileChannel fc) throws IOException {
+        if(fc.size() < 4) {
+            Panic.panic(Error.BadLogFileException);
+        }
+        ByteBuffer magic = ByteBuffer.allocate(4);
+        fc.read(magic, 0);
+        return Parser.parseInt(magic.array()) != LoggerImpl.MAGIC;
+    }
+
+    // v1 要求从头到尾的累积校验和与文件头一致
+    private static void checkXCheckSum(FileChannel fc) throws IOException {
+        ByteBuffer raw = ByteBuffer.allocate(4);
+        fc.read(raw, 0);
+        int xCheckSum = Parser.parseInt(raw.array());
+        int xCheck = 0;
+        long position = 4;
+        while (true) {
+            byte[] data = nextV1(fc, position);
+            if(data == null) break;
+            xCheck = calCheckSum(xCheck, Parser.int2Byte(data.length));
+            xCheck = calCheckSum(xCheck, Parser.int2Byte(calCheckSum(0, data)));
+            xCheck = calCheckSum(xCheck, data);
+            position += OF_DATA + data.length;
+        }
+        if(xCheck != xCheckSum) {
+            Panic.panic(Error.BadLogFileException);
+        }
+    }
+
+    private static int calCheckSum(int xCheck, byte[] log) {
+        for (byte b : log) {
+            xCheck = xCheck * SEED + b;
+        }
+        return xCheck;
+    }
+
+    private static byte[] nextV1(FileChannel fc, long position) throws IOException {
+        byte[] log = read(fc, position);
+        if(log == null) {
+            return null;
+        }
+        byte[] data = Arrays.copyOfRange(log, OF_DATA, log.length);
+        int checkSum = Parser.parseInt(Arrays.copyOfRange(log, OF_CHECKSUM, OF_DATA));
+        return calCheckSum(0, data) == checkSum ? data : null;
+    }
+
+    private static byte[] nextV2(FileChannel fc, long position) throws IOException {
+        byte[] log = read(fc, position);
+        if(log == null) {
+            return null;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(log, OF_SIZE, 4);
+        crc.update(log, OF_DATA, log.length - OF_DATA);
+        int checkSum = Parser.parseInt(Arrays.copyOfRange(log, OF_CHECKSUM, OF_DATA));
+        return (int) crc.getValue() == checkSum ? Arrays.copyOfRange(log, OF_DATA, log.length) : null;
+    }
+
+    // 读取 position 处的一条日志（含 Size 和 Checksum），越过文件末尾时返回 null
+    private static byte[] read(FileChannel fc, long position) throws IOException {
+        long fileSize = fc.size();
+        if(position + OF_DATA > fileSize) {
+            return null;
+        }
+        ByteBuffer tmp = ByteBuffer.allocate(4);
+        fc.read(tmp, position);
+        int size = Parser.parseInt(tmp.array());
+        if(size < 0 || position + size + OF_DATA > fileSize) {
+            return null;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(OF_DATA + size);
+        while (buf.hasRemaining()) {
+            fc.read(buf, position + buf.position());
+        }
+        return buf.array();
+    }
+}
@@ -3,13 +3,29 @@ package cn.edu.gzhu.backend.dm.logger.impl;
 import cn.edu.gzhu.backend.dm.logger.Logger;
 import cn.edu.gzhu.backend.utils.Panic;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 import cn.edu.gzhu.backend.utils.Parser;
 import cn.edu.gzhu.common.Error;
@@ -18,176 +34,697 @@ import com.google.common.primitives.Bytes;
 /**
  * 日志文件读写
  *
- * 日志文件标准格式为：
- * [XChecksum] [Log1] [Log2] ... [LogN] [BadTail]
- * XChecksum 为后续所有日志计算的Checksum，int类型
+ * 日志按 SEGMENT_SIZE 切分为多个段文件：name.log.000001, name.log.000002, ...
+ * LSN 为 64 位，高位是段号，低 SEGMENT_SHIFT 位是段内偏移。一条日志不会跨段，段尾放不下时写到下一段的开头。
+ *
+ * 每个段的格式为：
+ * [Magic] [Version] [SegNo] [Log1] [Log2] ... [LogN] [BadTail]
+ * Magic 4字节，Version 4字节，SegNo 8字节
  *
  * 每条正确日志的格式为：
  * [Size] [Checksum] [Data]
- * Size 4字节int 标识Data长度
- * Checksum 4字节int
+ * Size 4字节int 标识Data长度，最高位为 1 时 Data 经过压缩，为 [RawSize] [Deflated]
+ * Checksum 4字节int，Size 和 Data 的 CRC32 再与段号异或。
+ * 不小于 compressThreshold 的日志（如大行的插入日志）用 Deflater 快速压缩，压缩后足够小才保留。
+ * 段文件会被回收复用，复用前的旧日志因段号不同无法通过校验，不会被误认为新日志。
+ *
+ * 控制文件 name.log.ctl 记录检查点 LSN：恢复从这里开始读日志，它所在段之前的段都可以回收。
+ * 回收的段最多保留 MAX_SPARES 个，保持原文件名，需要新段时改名复用，省去创建和扩展文件的开销。
+ * 打开时只需从检查点开始向后校验，截掉第一条坏日志及其之后的部分（BadTail）。
+ * 旧格式的单文件日志 name.log 在打开时由 LegacyLog 转换为段文件。
+ *
+ * 组提交：log 只把日志追加到内存缓冲区，由 log-flusher 线程把缓冲区中积累的一批日志
+ * 一次写入并 force，调用者阻塞到自己的日志落盘为止。
+ * 并发写日志的线程越多，一次 force 覆盖的日志越多，吞吐不再受限于磁盘每秒 fsync 的次数。
+ * 缓冲区是两个轮流使用的直接内存 Batch，日志直接序列化进去，校验和在加锁前用线程私有的 CRC32 算好，
+ * 追加一条日志不产生任何对象。
  */
 public class LoggerImpl implements Logger {
-    private static final int SEED = 13331;
+    public static final int MAGIC = 0x4A434C47;
+    public static final int VERSION = 3;
+
+    private static final int OF_MAGIC = 0;
+    private static final int OF_VERSION = OF_MAGIC + 4;
+    private static final int OF_SEGNO = OF_VERSION + 4;
+    public static final int HEADER_SIZE = OF_SEGNO + 8;
 
     private static final int OF_SIZE = 0;
     private static final int OF_CHECKSUM = OF_SIZE + 4;
     private static final int OF_DATA = OF_CHECKSUM + 4;
 
+    // Size 中的压缩标记
+    private static final int COMPRESSED = 1 << 31;
+
+    // 段大小 16MB
+    private static final int SEGMENT_SHIFT = 24;
+    public static final long SEGMENT_SIZE = 1L << SEGMENT_SHIFT;
+    // 第一条日志的位置
+    public static final long FIRST_LSN = lsnOf(1, HEADER_SIZE);
+    // 最多保留的可回收段数，其余的旧段直接删除
+    private static final int MAX_SPARES = 2;
+
     public static final String LOG_SUFFIX = ".log";
+    public static final String CONTROL_SUFFIX = ".log.ctl";
+    public static final String CONTROL_TMP_SUFFIX = ".log.ctl_tmp";
+
+    // flusher 发现有待写日志后，最多再等待多久以攒更大的一批（微秒），0 表示立即写
+    public static final long DEFAULT_GROUP_COMMIT_DELAY = 0;
+    // 缓冲区达到这个大小时不再等待
+    private static final int MAX_BATCH = 1 << 20;
+    // Batch 的初始容量，放不下时翻倍
+    private static final int INITIAL_BATCH = MAX_BATCH * 2;
+    // 不小于这个大小的日志尝试压缩，0 表示不压缩
+    public static final int DEFAULT_COMPRESS_THRESHOLD = 1024;
+
+    // 压缩在写日志的线程上、加锁之前完成
+    private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+    private static final ThreadLocal<CRC32> CRC = ThreadLocal.withInitial(CRC32::new);
+    // 压缩的输出，[RawSize] [Deflated]
+    private static final ThreadLocal<byte[][]> COMPRESS_BUF = ThreadLocal.withInitial(() -> new byte[1][0]);
 
-    private RandomAccessFile file;
-    private FileChannel fc;
+    private String path;
     private Lock lock;
 
     // 当前日志指针的位置
     private long position;
-    // 初始化时记录，log操作不断更新
-    private long fileSize;
-    private int xCheckSum;
+    // 上一次读到的日志的位置
+    private long lastLsn;
+    // 读日志时把当前段只读映射进来，readView 是映射上的视图，指向上一次读到的日志内容
+    private RandomAccessFile readFile;
+    private FileChannel readFc;
+    private long readSeg;
+    private MappedByteBuffer readMap;
+    private ByteBuffer readView;
+    private CRC32 readCrc;
+    // 上一次读到的日志是否经过压缩，解压到 inflated 中
+    private boolean readCompressed;
+    private Inflater inflater;
+    private byte[] compressed;
+    private byte[] inflated;
 
-    public LoggerImpl(RandomAccessFile raf, FileChannel fc){
-        this.file = raf;
-        this.fc = fc;
-        lock = new ReentrantLock();
+    // 尚未写入文件的日志，log 追加到 filling，flusher 写 flushing，每批交换一次
+    private Batch filling;
+    private Batch flushing;
+    // 日志逻辑末尾（包括缓冲区中的日志）
+    private long appendLsn;
+    // 已经落盘的日志末尾
+    private long durableLsn;
+    private Condition hasPending;
+    private Condition flushed;
+    private long groupCommitDelay;
+    private int compressThreshold;
+    private Thread flusher;
+    private boolean closed;
+
+    // 只由 flusher 线程使用
+    private RandomAccessFile writeFile;
+    private FileChannel writeFc;
+    private long writeSeg;
+
+    // 检查点 LSN，恢复从这里开始
+    private long checkpoint;
+    // 段的回收，由检查点和 flusher 共同使用
+    private Lock segmentLock;
+    // 仍在使用的最旧的段
+    private long firstSeg;
+    private Deque<File> spares;
+
+    // 一批待写的日志，换段处分为多段，每段在文件中连续
+    static class Batch {
+        ByteBuffer buf = ByteBuffer.allocateDirect(INITIAL_BATCH);
+        // 每一段在 buf 中的起点和它的 LSN
+        int[] positions = new int[4];
+        long[] starts = new long[4];
+        int runs;
+        // 最后一条日志之后的 LSN
+        long end;
+
+        // 在 lsn 处追加一条日志
+        void append(long lsn, int size, int checkSum, byte[] data, int len) {
+            if(runs == 0 || lsn != end) {
+                if(runs == starts.length) {
+                    positions = Arrays.copyOf(positions, runs * 2);
+                    starts = Arrays.copyOf(starts, runs * 2);
+                }
+                positions[runs] = buf.position();
+                starts[runs] = lsn;
+                runs ++;
+            }
+            if(buf.remaining() < OF_DATA + len) {
+                ByteBuffer bigger = ByteBuffer.allocateDirect(Math.max(buf.capacity() * 2, buf.position() + OF_DATA + len));
+                buf.flip();
+                bigger.put(buf);
+                buf = bigger;
+            }
+            buf.putInt(size).putInt(checkSum).put(data, 0, len);
+            end = lsn + OF_DATA + len;
+        }
+
+        int size() {
+            return buf.position();
+        }
+
+        void clear() {
+            buf.clear();
+            runs = 0;
+        }
+    }
+
+    public LoggerImpl(String path){
+        this(path, DEFAULT_GROUP_COMMIT_DELAY, DEFAULT_COMPRESS_THRESHOLD);
     }
 
-    public LoggerImpl(RandomAccessFile raf, FileChannel fc, int xCheckSum){
-        this.file = raf;
-        this.fc = fc;
-        this.xCheckSum = xCheckSum;
+    public LoggerImpl(String path, long groupCommitDelay, int compressThreshold){
+        this.path = path;
+        this.groupCommitDelay = groupCommitDelay;
+        this.compressThreshold = compressThreshold;
         lock = new ReentrantLock();
+        hasPending = lock.newCondition();
+        flushed = lock.newCondition();
+        filling = new Batch();
+        flushing = new Batch();
+        segmentLock = new ReentrantLock();
+        spares = new ArrayDeque<>();
+        readSeg = -1;
+        readCrc = new CRC32();
+        inflater = new Inflater();
+        compressed = new byte[0];
+        inflated = new byte[0];
     }
 
-    public void init(){
-        long size = 0;
+    static long segmentOf(long lsn) {
+        return lsn >>> SEGMENT_SHIFT;
+    }
+
+    static long offsetOf(long lsn) {
+        return lsn & (SEGMENT_SIZE - 1);
+    }
+
+    static long lsnOf(long segNo, long offset) {
+        return segNo << SEGMENT_SHIFT | offset;
+    }
+
+    public static File segmentFile(String path, long segNo) {
+        return new File(path + LOG_SUFFIX + "." + String.format("%06d", segNo));
+    }
+
+    public static byte[] segmentHeader(long segNo) {
+        return Bytes.concat(Parser.int2Byte(MAGIC), Parser.int2Byte(VERSION), Parser.long2Byte(segNo));
+    }
+
+    // 现有的所有段文件，按段号排序
+    static TreeMap<Long, File> listSegments(String path) {
+        File base = new File(path).getAbsoluteFile();
+        String prefix = base.getName() + LOG_SUFFIX + ".";
+        TreeMap<Long, File> segments = new TreeMap<>();
+        File[] files = base.getParentFile().listFiles();
+        if(files == null) {
+            return segments;
+        }
+        for (File f : files) {
+            String name = f.getName();
+            if(name.startsWith(prefix) && name.substring(prefix.length()).matches("\\d{6,}")) {
+                segments.put(Long.parseLong(name.substring(prefix.length())), f);
+            }
+        }
+        return segments;
+    }
+
+    /**
+     * 原子地更新控制文件：先写临时文件并落盘，再重命名覆盖
+     * 格式为 [Magic] [Checkpoint] [Checksum]
+     */
+    public static void writeControl(String path, long checkpoint) {
+        byte[] raw = Bytes.concat(Parser.int2Byte(MAGIC), Parser.long2Byte(checkpoint));
+        CRC32 crc = new CRC32();
+        crc.update(raw, 0, raw.length);
+        raw = Bytes.concat(raw, Parser.int2Byte((int) crc.getValue()));
+        File tmp = new File(path + CONTROL_TMP_SUFFIX);
+        try (RandomAccessFile out = new RandomAccessFile(tmp, "rw")) {
+            out.setLength(0);
+            out.write(raw);
+            out.getChannel().force(true);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
         try {
-            size = file.length();
-        } catch (IOException e){
+            Files.move(tmp.toPath(), new File(path + CONTROL_SUFFIX).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
             Panic.panic(e);
         }
-        if(size < 4){
-            Panic.panic(Error.BadLogFileException);
+        syncDirectory(path);
+    }
+
+    /**
+     * 将日志所在的目录落盘
+     * 新建、重命名、删除文件改的是目录项，只 force 文件本身不能保证它们在掉电后仍然存在
+     */
+    static void syncDirectory(String path) {
+        File dir = new File(path).getAbsoluteFile().getParentFile();
+        FileChannel fc;
+        try {
+            fc = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+        } catch (IOException e) {
+            // 有的平台（如 Windows）不能以文件的方式打开目录，也就无从 force
+            return;
+        }
+        try {
+            fc.force(true);
+        } catch (IOException e) {
+            Panic.panic(e);
+        } finally {
+            try {
+                fc.close();
+            } catch (IOException e) {
+                Panic.panic(e);
+            }
         }
-        ByteBuffer raw = ByteBuffer.allocate(4);
+    }
+
+    private static long readControl(String path) {
+        byte[] raw = null;
         try {
-            fc.position(0);
-            fc.read(raw);
-        } catch (IOException e){
+            raw = Files.readAllBytes(new File(path + CONTROL_SUFFIX).toPath());
+        } catch (IOException e) {
             Panic.panic(e);
         }
-        int xCheckSum = Parser.parseInt(raw.array());
-        this.fileSize = size;
-        this.xCheckSum = xCheckSum;
+        if(raw.length != 16 || Parser.parseInt(Arrays.copyOfRange(raw, 0, 4)) != MAGIC) {
+            Panic.panic(Error.BadLogFileException);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(raw, 0, 12);
+        if((int) crc.getValue() != Parser.parseInt(Arrays.copyOfRange(raw, 12, 16))) {
+            Panic.panic(Error.BadLogFileException);
+        }
+        return Parser.parseLong(Arrays.copyOfRange(raw, 4, 12));
+    }
 
+    public void init(){
+        new File(path + CONTROL_TMP_SUFFIX).delete();
+        checkpoint = readControl(path);
+        if(!openForRead(segmentOf(checkpoint))) {
+            Panic.panic(Error.BadLogFileException);
+        }
         checkAndRemoveTail();
+
+        // 检查点之前的段已经不再需要
+        firstSeg = segmentOf(checkpoint);
+        for (File f : listSegments(path).headMap(firstSeg).values()) {
+            recycle(f);
+        }
+        appendLsn = durableLsn = position;
+        openForWrite(segmentOf(position));
+
+        flusher = new Thread(this::flushLoop, "log-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+        rewind();
     }
 
-    // 检查并移除 bad tail
+    // 从检查点开始检查并移除 bad tail，检查点之前的日志在检查点时已经落盘
     private void checkAndRemoveTail() {
         rewind();
-        int xCheck = 0;
-        while (true) {
-            byte[] log = internNext();
-            if(log == null) break;
-            xCheck = calCheckSum(xCheck, log);
-        }
-        if(xCheck != xCheckSum){
-            Panic.panic(Error.BadLogFileException);
+        while (internNext()) {
         }
+        closeRead();
         try {
             truncate(position);
         } catch (Exception e) {
             Panic.panic(e);
         }
+    }
+
+    // Size 和 Data 的 CRC32，写入前再与段号异或
+    private static int checksum(int size, byte[] data, int len) {
+        CRC32 crc = CRC.get();
+        crc.reset();
+        crc.update(size >>> 24);
+        crc.update(size >>> 16);
+        crc.update(size >>> 8);
+        crc.update(size);
+        crc.update(data, 0, len);
+        return (int) crc.getValue();
+    }
+
+    private boolean openForRead(long segNo) {
+        if(readSeg == segNo) {
+            return true;
+        }
+        closeRead();
+        File f = segmentFile(path, segNo);
+        if(!f.exists()) {
+            return false;
+        }
         try {
-            file.seek(position);
+            readFile = new RandomAccessFile(f, "r");
+            readFc = readFile.getChannel();
+            readSeg = segNo;
+            if(!mapped(HEADER_SIZE)) {
+                closeRead();
+                return false;
+            }
+            byte[] header = new byte[HEADER_SIZE];
+            readView.limit(HEADER_SIZE).position(0);
+            readView.get(header);
+            if(!Arrays.equals(header, segmentHeader(segNo))) {
+                closeRead();
+                return false;
+            }
         } catch (IOException e) {
             Panic.panic(e);
         }
-        rewind();
+        return true;
     }
 
-    private int calCheckSum(int xCheck, byte[] log) {
-        for (byte b : log) {
-            xCheck = xCheckSum * SEED + b;
+    private void closeRead() {
+        if(readFile == null) {
+            return;
+        }
+        try {
+            readFile.close();
+        } catch (IOException e) {
+            Panic.panic(e);
         }
-        return xCheck;
+        readFile = null;
+        readFc = null;
+        readSeg = -1;
+        readMap = null;
+        readView = null;
     }
 
-    private byte[] internNext() {
-        if(position + OF_DATA >= fileSize){
-            return null;
+    // 确保映射覆盖到 end，正在写的段变长后重新映射；段文件不够长时返回 false
+    private boolean mapped(long end) throws IOException {
+        if(readMap != null && end <= readMap.capacity()) {
+            return true;
         }
-        // 读取 size
-        ByteBuffer tmp = ByteBuffer.allocate(4);
-        try {
-            fc.position(position);
-            fc.read(tmp);
-        } catch (IOException e){
-            Panic.panic(e);
+        long size = Math.min(readFc.size(), SEGMENT_SIZE);
+        if(end > size) {
+            return false;
         }
-        int size = Parser.parseInt(tmp.array());
-        if(position + size + OF_DATA > fileSize){
-            return null;
+        readMap = readFc.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        readView = readMap.asReadOnlyBuffer();
+        return true;
+    }
+
+    // 校验当前段中 offset 处的一条日志，合法时 readView 指向其 Data 并返回整条日志的长度，否则返回 -1
+    private int readLog(long offset) throws IOException {
+        if(!mapped(offset + OF_DATA)) {
+            return -1;
+        }
+        int start = (int) offset;
+        int size = readMap.getInt(start + OF_SIZE) & ~COMPRESSED;
+        if( offset + OF_DATA + size > SEGMENT_SIZE || !mapped(offset + OF_DATA + size)) {
+            return -1;
         }
-        // 读取 checkSum + data
-        ByteBuffer buf = ByteBuffer.allocate(OF_DATA + size);
+        // 直接在映射上计算 CRC，不复制日志
+        readCrc.reset();
+        readView.limit(start + OF_SIZE + 4).position(start + OF_SIZE);
+        readCrc.update(readView);
+        readView.limit(start + OF_DATA + size).position(start + OF_DATA);
+        readCrc.update(readView);
+        if(((int) readCrc.getValue() ^ (int) readSeg) != readMap.getInt(start + OF_CHECKSUM)) {
+            return -1;
+        }
+        readView.position(start + OF_DATA);
+        readCompressed = (readMap.getInt(start + OF_SIZE) & COMPRESSED) != 0;
+        return OF_DATA + size;
+    }
+
+    // 读取 position 处的日志，成功时 readView 指向其 Data
+    private boolean internNext() {
         try {
-            fc.position(position);
-            fc.read(buf);
-        } catch (IOException e){
+            long segNo = segmentOf(position);
+            if(!openForRead(segNo)) {
+                return false;
+            }
+            int length = readLog(offsetOf(position));
+            if(length < 0) {
+                // 可能是换段时留下的段尾，下一段开头有合法的日志时从那里继续
+                if(!openForRead(segNo + 1) || (length = readLog(HEADER_SIZE)) < 0) {
+                    return false;
+                }
+                position = lsnOf(segNo + 1, HEADER_SIZE);
+            }
+            lastLsn = position;
+            position += length;
+            return true;
+        } catch (IOException e) {
             Panic.panic(e);
         }
-        // 校验 checkSum
-        byte[] log = buf.array();
-        int checkSum1 = calCheckSum(0, Arrays.copyOfRange(log, OF_DATA, log.length));
-        int checkSum2 = Parser.parseInt(Arrays.copyOfRange(log, OF_CHECKSUM, OF_DATA));
-        if(checkSum1 != checkSum2){
-            return null;
-        }
-        position += log.length;
-        return log;
+        return false;
     }
 
     @Override
-    public void log(byte[] data) {
-        byte[] log = warpLog(data);
-        ByteBuffer buf = ByteBuffer.wrap(log);
+    public long log(byte[] data) {
+        byte[] body = data;
+        int len = data.length;
+        int size = len;
+        if(compressThreshold > 0 && data.length >= compressThreshold) {
+            int n = compressLog(data);
+            if(n > 0) {
+                body = COMPRESS_BUF.get()[0];
+                len = n;
+                size = n | COMPRESSED;
+            }
+        }
+        int checkSum = checksum(size, body, len);
         lock.lock();
         try {
-            fc.position(fc.size());
-            fc.write(buf);
-        } catch (IOException e){
-            Panic.panic(e);
+            // 当前段放不下，换到下一段
+            if(offsetOf(appendLsn) + OF_DATA + len > SEGMENT_SIZE) {
+                appendLsn = lsnOf(segmentOf(appendLsn) + 1, HEADER_SIZE);
+            }
+            filling.append(appendLsn, size, checkSum ^ (int) segmentOf(appendLsn), body, len);
+            long lsn = appendLsn;
+            appendLsn += OF_DATA + len;
+            long end = appendLsn;
+            hasPending.signal();
+            while (durableLsn < end) {
+                flushed.awaitUninterruptibly();
+            }
+            return lsn;
         } finally {
             lock.unlock();
         }
-        updateXCheckSum(log);
     }
 
-    private void updateXCheckSum(byte[] log) {
-        this.xCheckSum = calCheckSum(this.xCheckSum, log);
+    private void flushLoop() {
+        while (true) {
+            Batch batch;
+            long end;
+            lock.lock();
+            try {
+                while (filling.size() == 0 && !closed) {
+                    hasPending.awaitUninterruptibly();
+                }
+                if(filling.size() == 0) {
+                    return;
+                }
+                // 等待更多的日志加入这一批
+                long nanos = TimeUnit.MICROSECONDS.toNanos(groupCommitDelay);
+                while (nanos > 0 && filling.size() < MAX_BATCH && !closed) {
+                    try {
+                        nanos = hasPending.awaitNanos(nanos);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                }
+                batch = filling;
+                filling = flushing;
+                flushing = batch;
+                end = appendLsn;
+            } finally {
+                lock.unlock();
+            }
+            writeBatch(batch);
+            batch.clear();
+            lock.lock();
+            try {
+                durableLsn = end;
+                flushed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    // 写入一批日志，一次 force；跨段时先让上一段落盘，保证下一段有合法日志时上一段一定是完整的
+    private void writeBatch(Batch batch) {
         try {
-            fc.position(0);
-            fc.write(ByteBuffer.wrap(Parser.int2Byte(xCheckSum)));
-            fc.force(false);
+            ByteBuffer buf = batch.buf;
+            int size = buf.position();
+            for (int i = 0; i < batch.runs; i++) {
+                long segNo = segmentOf(batch.starts[i]);
+                if(segNo != writeSeg) {
+                    writeFc.force(false);
+                    openForWrite(segNo);
+                }
+                int from = batch.positions[i];
+                int to = i + 1 < batch.runs ? batch.positions[i + 1] : size;
+                buf.limit(to).position(from);
+                long offset = offsetOf(batch.starts[i]) - from;
+                while (buf.hasRemaining()) {
+                    writeFc.write(buf, offset + buf.position());
+                }
+            }
+            writeFc.force(false);
         } catch(IOException e) {
             Panic.panic(e);
         }
     }
 
-    private byte[] warpLog(byte[] data) {
-        byte[] checkSum = Parser.int2Byte(calCheckSum(0, data));
-        byte[] size = Parser.int2Byte(data.length);
-        return Bytes.concat(size, checkSum, data);
+    // 打开 segNo 段用于写入，段不存在时优先回收旧段，否则新建
+    private void openForWrite(long segNo) {
+        try {
+            if(writeFile != null) {
+                writeFile.close();
+            }
+            File f = segmentFile(path, segNo);
+            boolean fresh = !f.exists();
+            if(fresh) {
+                File spare = takeSpare();
+                if(spare != null) {
+                    Files.move(spare.toPath(), f.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                }
+            }
+            writeFile = new RandomAccessFile(f, "rw");
+            writeFc = writeFile.getChannel();
+            writeSeg = segNo;
+            if(fresh) {
+                writeFc.write(ByteBuffer.wrap(segmentHeader(segNo)), 0);
+                // 段中的日志在组提交时落盘，段文件的目录项在这里落盘
+                syncDirectory(path);
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    private File takeSpare() {
+        segmentLock.lock();
+        try {
+            return spares.poll();
+        } finally {
+            segmentLock.unlock();
+        }
+    }
+
+    // 不再需要的段：留作备用或删除
+    private void recycle(File f) {
+        segmentLock.lock();
+        try {
+            if(spares.size() < MAX_SPARES) {
+                spares.add(f);
+            } else {
+                f.delete();
+            }
+        } finally {
+            segmentLock.unlock();
+        }
+    }
+
+    // 日志的外层结构，Checksum 在确定所在的段后由 sealLog 与段号异或
+    public static byte[] warpLog(byte[] data) {
+        byte[] log = new byte[OF_DATA + data.length];
+        ByteBuffer.wrap(log).putInt(data.length).putInt(checksum(data.length, data, data.length)).put(data);
+        return log;
+    }
+
+    // 压缩到 COMPRESS_BUF 中，返回 [RawSize] [Deflated] 的长度；至少省下 1/8 才值得，否则返回 -1
+    private static int compressLog(byte[] data) {
+        Deflater deflater = DEFLATER.get();
+        deflater.reset();
+        deflater.setInput(data);
+        deflater.finish();
+        int limit = data.length - data.length / 8;
+        byte[][] holder = COMPRESS_BUF.get();
+        if(holder[0].length < 4 + limit) {
+            holder[0] = new byte[4 + limit];
+        }
+        byte[] buf = holder[0];
+        int n = deflater.deflate(buf, 4, limit);
+        if(!deflater.finished()) {
+            return -1;
+        }
+        buf[0] = (byte) (data.length >>> 24);
+        buf[1] = (byte) (data.length >>> 16);
+        buf[2] = (byte) (data.length >>> 8);
+        buf[3] = (byte) data.length;
+        return 4 + n;
     }
 
+    // 解压 readView 指向的 [RawSize] [Deflated]
+    private ByteBuffer inflate() {
+        int rawSize = readView.getInt();
+        int len = readView.remaining();
+        if(compressed.length < len) {
+            compressed = new byte[len];
+        }
+        if(inflated.length < rawSize) {
+            inflated = new byte[rawSize];
+        }
+        readView.get(compressed, 0, len);
+        inflater.reset();
+        inflater.setInput(compressed, 0, len);
+        try {
+            if(inflater.inflate(inflated, 0, rawSize) != rawSize || !inflater.finished()) {
+                Panic.panic(Error.BadLogFileException);
+            }
+        } catch (DataFormatException e) {
+            Panic.panic(e);
+        }
+        return ByteBuffer.wrap(inflated, 0, rawSize).asReadOnlyBuffer();
+    }
+
+    public static void sealLog(byte[] log, long segNo) {
+        int checkSum = Parser.parseInt(Arrays.copyOfRange(log, OF_CHECKSUM, OF_DATA)) ^ (int) segNo;
+        System.arraycopy(Parser.int2Byte(checkSum), 0, log, OF_CHECKSUM, 4);
+    }
+
+    @Override
+    public long lsn() {
+        lock.lock();
+        try {
+            return appendLsn;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void setCheckpoint(long lsn) {
+        writeControl(path, lsn);
+        checkpoint = lsn;
+        // 检查点之前的段不会再被读取
+        List<File> obsolete = new ArrayList<>();
+        segmentLock.lock();
+        try {
+            long segNo = segmentOf(lsn);
+            for (; firstSeg < segNo; firstSeg ++) {
+                obsolete.add(segmentFile(path, firstSeg));
+            }
+        } finally {
+            segmentLock.unlock();
+        }
+        for (File f : obsolete) {
+            recycle(f);
+        }
+    }
+
+    // 截断到 x：x 所在段截掉尾部，之后的段删除
     @Override
     public void truncate(long x) throws Exception {
         lock.lock();
         try {
-            fc.truncate(x);
+            for (File f : listSegments(path).tailMap(segmentOf(x), false).values()) {
+                f.delete();
+            }
+            try (RandomAccessFile f = new RandomAccessFile(segmentFile(path, segmentOf(x)), "rw")) {
+                f.getChannel().truncate(offsetOf(x));
+                f.getChannel().force(true);
+            }
+            // 删除的段必须真正消失，否则再次崩溃后它们中的旧日志会接在截断处之后被读到
+            syncDirectory(path);
         } finally {
             lock.unlock();
         }
@@ -195,26 +732,63 @@ public class LoggerImpl implements Logger {
 
     @Override
     public byte[] next() {
+        lock.lock();
+        try {
+            ByteBuffer view = nextView();
+            if(view == null) {
+                return null;
+            }
+            byte[] data = new byte[view.remaining()];
+            view.get(data);
+            return data;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public ByteBuffer nextView() {
         lock.lock();
         try{
-            byte[] log = internNext();
-            if(log == null) return null;
-            return Arrays.copyOfRange(log, OF_DATA, log.length);
+            if(!internNext()) {
+                closeRead();
+                return null;
+            }
+            return readCompressed ? inflate() : readView;
         } finally {
             lock.unlock();
         }
     }
 
+    @Override
+    public long lastLsn() {
+        return lastLsn;
+    }
+
     @Override
     public void rewind() {
-        position = 4;
+        position = checkpoint;
     }
 
     @Override
     public void close() {
+        // 等待 flusher 写完缓冲区中剩余的日志
+        lock.lock();
+        try {
+            closed = true;
+            hasPending.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Panic.panic(e);
+        }
+        closeRead();
+        inflater.end();
         try {
-            fc.close();
-            file.close();
+            writeFile.close();
         } catch(IOException e) {
             Panic.panic(e);
         }
@@ -1,11 +1,17 @@
 package cn.edu.gzhu.backend.dm.page;
 
+import java.nio.ByteBuffer;
+
 public interface Page {
     void lock();
     void unlock();
     void release();
     void setDirty(boolean dirty);
     boolean isDirty();
+    // 页从干净变脏后第一条作用于它的日志的 LSN，页写回后清零
+    long getRecLsn();
+    void setRecLsn(long recLsn);
     int getPageNumber();
-    byte[] getData();
+    // 页的内容，堆外的直接缓冲区，被多个线程共享，只能按绝对位置读写（见 BufferUtil）
+    ByteBuffer getData();
 }
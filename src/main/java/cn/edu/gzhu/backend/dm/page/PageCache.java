@@ -1,5 +1,6 @@
 package cn.edu.gzhu.backend.dm.page;
 
+import cn.edu.gzhu.backend.common.EvictionPolicy;
 import cn.edu.gzhu.backend.dm.page.impl.PageCacheImpl;
 import cn.edu.gzhu.backend.utils.Panic;
 
@@ -7,6 +8,8 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.RandomAccessFile;
 import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.function.IntFunction;
 
 import cn.edu.gzhu.common.Error;
 
@@ -15,14 +18,24 @@ public interface PageCache {
 
     int newPage(byte[] initData);
     Page getPage(int pageNum) throws Exception;
+    // 预读提示：这些页即将被访问，异步读入缓存
+    void prefetch(int[] pageNums);
     void close();
     void release(Page page);
 
     void truncateByPageNum(int maxPageNum);
     int getPageNumber();
     void flushPage(Page page);
+    // 按页号顺序写回 recLsn 早于 lsn 的脏页（没有日志作用过的脏页 recLsn 为 0，总会写回），不 force
+    void flushDirtyPages(long lsn);
+    // 脏页表：当前所有脏页的页号和 recLsn
+    Map<Integer, Long> dirtyPageTable();
+    // 将已写回的页刷到磁盘
+    void sync();
+    // 一整页的写入是否原子，见 PageFile.atomicPageWrite
+    boolean atomicPageWrite();
 
-    public static PageCacheImpl create(String path, long memory){
+    public static PageCacheImpl create(String path, long memory, String policy, String ioMode){
         File file = new File(path + PageCacheImpl.DB_SUFFIX);
         try {
             if(!file.createNewFile()) {
@@ -43,10 +56,10 @@ public interface PageCache {
         } catch (FileNotFoundException e) {
             Panic.panic(e);
         }
-        return new PageCacheImpl(raf, fc, (int)memory/PAGE_SIZE);
+        return new PageCacheImpl(newPageFile(ioMode, raf, fc), (int)(memory/PAGE_SIZE), newPolicies(policy));
     }
 
-    public static PageCacheImpl open(String path, long memory) {
+    public static PageCacheImpl open(String path, long memory, String policy, String ioMode) {
         File file = new File(path+PageCacheImpl.DB_SUFFIX);
         if(!file.exists()) {
             Panic.panic(Error.FileNotExistsException);
@@ -63,6 +76,24 @@ public interface PageCache {
         } catch (FileNotFoundException e) {
             Panic.panic(e);
         }
-        return new PageCacheImpl(raf, fc, (int)memory/PAGE_SIZE);
+        return new PageCacheImpl(newPageFile(ioMode, raf, fc), (int)(memory/PAGE_SIZE), newPolicies(policy));
+    }
+
+    static PageFile newPageFile(String ioMode, RandomAccessFile raf, FileChannel fc) {
+        try {
+            return PageFile.newPageFile(ioMode, raf, fc);
+        } catch (Exception e) {
+            Panic.panic(e);
+        }
+        return null;
+    }
+
+    static IntFunction<EvictionPolicy> newPolicies(String policy) {
+        try {
+            return EvictionPolicy.newPolicies(policy);
+        } catch (Exception e) {
+            Panic.panic(e);
+        }
+        return null;
     }
 }
@@ -0,0 +1,64 @@
+package cn.edu.gzhu.backend.dm.page;
+
+import cn.edu.gzhu.backend.dm.page.impl.ChannelPageFile;
+import cn.edu.gzhu.backend.dm.page.impl.MappedPageFile;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import cn.edu.gzhu.common.Error;
+
+/**
+ * DB 文件的页级读写，PageCache 通过它访问磁盘
+ * 页号从 1 开始，第 pageNum 页位于文件的 (pageNum - 1) * PAGE_SIZE 处
+ * 帧是 PAGE_SIZE 大小的缓冲区，读写时不改动它们的 position 和 limit
+ */
+public interface PageFile {
+    String IO_PREAD = "pread";
+    String IO_MMAP = "mmap";
+
+    // 读取一整页到 frame 中，文件末尾之外的部分填 0
+    void read(int pageNum, ByteBuffer frame);
+    // 一次读取从 startPage 开始的连续多页，第 i 页读入 frames[i]
+    void read(int startPage, ByteBuffer[] frames);
+    // 将一整页写入文件，不保证落盘
+    void write(int pageNum, ByteBuffer data);
+    // 将从 startPage 开始的连续多页一次写入文件，不保证落盘
+    void write(int startPage, ByteBuffer[] pages);
+    // 将之前写入的页刷到磁盘
+    void force();
+    void truncate(long size);
+    // 将文件预分配到 size 字节：新增部分真实写入 0 并落盘，之后写入这部分的页不再改变文件元数据
+    void extend(long size);
+    long length();
+    // 一整页的写入是否原子：崩溃后磁盘上的页要么是写入前的内容，要么是写入后的内容
+    boolean atomicPageWrite();
+    void close();
+
+    public static PageFile newPageFile(String ioMode, RandomAccessFile raf, FileChannel fc) throws Exception {
+        if(ioMode == null || "".equals(ioMode) || IO_PREAD.equals(ioMode)) {
+            return new ChannelPageFile(raf, fc);
+        }
+        if(IO_MMAP.equals(ioMode)) {
+            return new MappedPageFile(raf, fc);
+        }
+        throw Error.InvalidIOModeException;
+    }
+
+    static long pageOffset(int pageNum) {
+        return (long) (pageNum - 1) * PageCache.PAGE_SIZE;
+    }
+
+    // 将 [from, to) 写为 0，不是 setLength 产生的稀疏空洞，磁盘块在此时就分配好
+    static void zeroFill(FileChannel fc, long from, long to) throws IOException {
+        ByteBuffer zeros = ByteBuffer.allocate((int) Math.min(to - from, 1 << 20));
+        long pos = from;
+        while (pos < to) {
+            zeros.clear();
+            zeros.limit((int) Math.min(zeros.capacity(), to - pos));
+            pos += fc.write(zeros, pos);
+        }
+    }
+}
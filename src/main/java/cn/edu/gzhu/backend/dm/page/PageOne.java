@@ -1,7 +1,9 @@
 package cn.edu.gzhu.backend.dm.page;
 
+import cn.edu.gzhu.backend.utils.BufferUtil;
 import cn.edu.gzhu.backend.utils.RandomUtil;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 /**
@@ -16,7 +18,7 @@ public class PageOne {
 
     public static byte[] initRaw() {
         byte[] raw = new byte[PageCache.PAGE_SIZE];
-        setVcOpen(raw);
+        setVcOpen(ByteBuffer.wrap(raw));
         return raw;
     }
 
@@ -25,8 +27,8 @@ public class PageOne {
         setVcOpen(page.getData());
     }
 
-    private static void setVcOpen(byte[] raw) {
-        System.arraycopy(RandomUtil.randomBytes(LEN_VC), 0, raw, OF_VC, LEN_VC);
+    private static void setVcOpen(ByteBuffer raw) {
+        BufferUtil.put(raw, OF_VC, RandomUtil.randomBytes(LEN_VC));
     }
 
     public static void setVcClose(Page page){
@@ -34,15 +36,15 @@ public class PageOne {
         setVcClose(page.getData());
     }
 
-    private static void setVcClose(byte[] raw){
-        System.arraycopy(raw, OF_VC, raw, OF_VC + LEN_VC, LEN_VC);
+    private static void setVcClose(ByteBuffer raw){
+        BufferUtil.put(raw, OF_VC + LEN_VC, BufferUtil.copyOfRange(raw, OF_VC, OF_VC + LEN_VC));
     }
 
     public static boolean checkVc(Page page){
         return checkVc(page.getData());
     }
 
-    private static boolean checkVc(byte[] raw){
-        return Arrays.equals(Arrays.copyOfRange(raw, OF_VC, OF_VC+LEN_VC), Arrays.copyOfRange(raw, OF_VC+LEN_VC, OF_VC+2*LEN_VC));
+    private static boolean checkVc(ByteBuffer raw){
+        return Arrays.equals(BufferUtil.copyOfRange(raw, OF_VC, OF_VC+LEN_VC), BufferUtil.copyOfRange(raw, OF_VC+LEN_VC, OF_VC+2*LEN_VC));
     }
 }
@@ -1,28 +1,30 @@
 package cn.edu.gzhu.backend.dm.page;
 
-import cn.edu.gzhu.backend.utils.Parser;
+import cn.edu.gzhu.backend.utils.BufferUtil;
 
-import java.util.Arrays;
+import java.nio.ByteBuffer;
 
 /**
  * PageX管理普通页
  * 普通页结构
- * [FreeSpaceOffset] [Data]
+ * [FreeSpaceOffset] [Data] ... [PageLSN]
  * FreeSpaceOffset: 2字节 空闲位置开始偏移
+ * PageLSN: 页尾 8 字节，最后一条作用于该页的日志的 LSN，恢复时跳过不晚于它的日志
  */
 public class PageX {
     private static final short OF_FREE = 0;
     private static final short OF_DATA = 2;
-    public static final int MAX_FREE_SPACE = PageCache.PAGE_SIZE - OF_DATA;
+    private static final int OF_LSN = PageCache.PAGE_SIZE - 8;
+    public static final int MAX_FREE_SPACE = OF_LSN - OF_DATA;
 
     public static byte[] initRaw(){
         byte[] raw = new byte[PageCache.PAGE_SIZE];
-        setFSO(raw, OF_DATA);
+        setFSO(ByteBuffer.wrap(raw), OF_DATA);
         return raw;
     }
 
-    private static void setFSO(byte[] raw, short ofData) {
-        System.arraycopy(Parser.short2Byte(ofData), 0, raw, OF_FREE, OF_DATA);
+    private static void setFSO(ByteBuffer raw, short ofData) {
+        raw.putShort(OF_FREE, ofData);
     }
 
     // 获取page的FSO
@@ -30,28 +32,59 @@ public class PageX {
         return getFSO(page.getData());
     }
 
-    private static short getFSO(byte[] raw) {
-        return Parser.parseShort(Arrays.copyOfRange(raw, 0, 2));
+    private static short getFSO(ByteBuffer raw) {
+        short fso = raw.getShort(OF_FREE);
+        // 新页在缓存中创建，崩溃前可能从未写回，恢复后读到的是全 0 的页
+        return fso < OF_DATA ? OF_DATA : fso;
     }
 
     // 将 raw 插入 page 中，返回插入位置
     public static short insert(Page page, byte[] raw){
         page.setDirty(true);
         short offset = getFSO(page.getData());
-        System.arraycopy(raw, 0, page.getData(), offset, raw.length);
+        BufferUtil.put(page.getData(), offset, raw);
         setFSO(page.getData(), (short) (offset + raw.length));
         return offset;
     }
 
     // 获取页面的空闲空间大小
     public static int getFreeSpace(Page page){
-         return PageCache.PAGE_SIZE - (int)getFSO(page.getData());
+         return Math.max(0, OF_LSN - (int)getFSO(page.getData()));
+    }
+
+    // 早期的页没有 PageLSN，数据可能一直写到了页尾
+    public static boolean hasPageLsn(Page page) {
+        return getFSO(page.getData()) <= OF_LSN;
+    }
+
+    // 获取页面的 PageLSN，没有时返回 0
+    public static long getPageLsn(Page page) {
+        if(!hasPageLsn(page)) {
+            return 0;
+        }
+        return page.getData().getLong(OF_LSN);
+    }
+
+    // 日志 lsn 已作用于页面：PageLSN 只增不减，页变脏后的第一条日志记为 recLsn
+    public static void setPageLsn(Page page, long lsn) {
+        page.lock();
+        try {
+            if(page.getRecLsn() == 0) {
+                page.setRecLsn(lsn);
+            }
+            if(!hasPageLsn(page) || getPageLsn(page) >= lsn) {
+                return;
+            }
+            page.getData().putLong(OF_LSN, lsn);
+        } finally {
+            page.unlock();
+        }
     }
 
     // 将 raw 插入 page 中的 offset 位置，并将 page 中 offset 设置为较大的 offset
     public static void recoverInsert(Page page, byte[] raw, short offset){
         page.setDirty(true);
-        System.arraycopy(raw, 0, page.getData(), offset, raw.length);
+        BufferUtil.put(page.getData(), offset, raw);
         short rawFSO = getFSO(page.getData());
         if(rawFSO < offset + raw.length){
             setFSO(page.getData(), (short) (offset + raw.length));
@@ -61,6 +94,6 @@ public class PageX {
     // 将raw插入page中的offset，不更新update
     public static void recoverUpdate(Page page, byte[] raw, short offset) {
         page.setDirty(true);
-        System.arraycopy(raw, 0, page.getData(), offset, raw.length);
+        BufferUtil.put(page.getData(), offset, raw);
     }
 }
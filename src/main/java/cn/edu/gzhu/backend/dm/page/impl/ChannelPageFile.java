@@ -0,0 +1,166 @@
+package cn.edu.gzhu.backend.dm.page.impl;
+
+import cn.edu.gzhu.backend.dm.page.PageCache;
+import cn.edu.gzhu.backend.dm.page.PageFile;
+import cn.edu.gzhu.backend.utils.BufferUtil;
+import cn.edu.gzhu.backend.utils.Panic;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 通过 FileChannel 读写页（-io pread）
+ * 单页使用带位置参数的 read/write，不修改 channel 的 position，不同页的读写可以并行，无需加锁；
+ * 连续多页的读写使用分散读/聚集写，一次系统调用直接在各个帧与文件之间传输整段，只有它们会移动 position。
+ * 帧是直接缓冲区，内核直接读写帧的内存，不经过 JDK 临时的直接缓冲区中转。
+ */
+public class ChannelPageFile implements PageFile {
+    private RandomAccessFile file;
+    private FileChannel fc;
+    // 分散读和聚集写都要先设置 position
+    private Lock gatherLock;
+
+    public ChannelPageFile(RandomAccessFile file, FileChannel fc) {
+        this.file = file;
+        this.fc = fc;
+        this.gatherLock = new ReentrantLock();
+    }
+
+    @Override
+    public void read(int pageNum, ByteBuffer frame) {
+        long offset = PageFile.pageOffset(pageNum);
+        ByteBuffer buf = frame.duplicate();
+        try{
+            while (buf.hasRemaining()) {
+                if(fc.read(buf, offset + buf.position()) < 0) {
+                    break;
+                }
+            }
+        } catch (IOException e){
+            Panic.panic(e);
+        }
+        BufferUtil.fill(frame, buf.position(), PageCache.PAGE_SIZE, (byte) 0);
+    }
+
+    @Override
+    public void read(int startPage, ByteBuffer[] frames) {
+        // FileChannel 的分散读只能从 channel 的 position 读取，需要加锁
+        ByteBuffer[] bufs = new ByteBuffer[frames.length];
+        for (int i = 0; i < frames.length; i++) {
+            bufs[i] = frames[i].duplicate();
+        }
+        ByteBuffer last = bufs[bufs.length - 1];
+        gatherLock.lock();
+        try{
+            fc.position(PageFile.pageOffset(startPage));
+            while (last.hasRemaining()) {
+                if(fc.read(bufs) < 0) {
+                    break;
+                }
+            }
+        } catch (IOException e){
+            Panic.panic(e);
+        } finally {
+            gatherLock.unlock();
+        }
+        // 读到文件末尾之外的部分补零
+        for (int i = 0; i < frames.length; i++) {
+            BufferUtil.fill(frames[i], bufs[i].position(), PageCache.PAGE_SIZE, (byte) 0);
+        }
+    }
+
+    @Override
+    public void write(int pageNum, ByteBuffer data) {
+        long offset = PageFile.pageOffset(pageNum);
+        ByteBuffer buf = data.duplicate();
+        try{
+            while (buf.hasRemaining()) {
+                fc.write(buf, offset + buf.position());
+            }
+        } catch (IOException e){
+            Panic.panic(e);
+        }
+    }
+
+    @Override
+    public void write(int startPage, ByteBuffer[] pages) {
+        // FileChannel 的聚集写只能从 channel 的 position 写入，需要加锁
+        ByteBuffer[] bufs = new ByteBuffer[pages.length];
+        for (int i = 0; i < pages.length; i++) {
+            bufs[i] = pages[i].duplicate();
+        }
+        ByteBuffer last = bufs[bufs.length - 1];
+        gatherLock.lock();
+        try{
+            fc.position(PageFile.pageOffset(startPage));
+            while (last.hasRemaining()) {
+                fc.write(bufs);
+            }
+        } catch (IOException e){
+            Panic.panic(e);
+        } finally {
+            gatherLock.unlock();
+        }
+    }
+
+    @Override
+    public void force() {
+        try {
+            fc.force(false);
+        } catch (IOException e){
+            Panic.panic(e);
+        }
+    }
+
+    @Override
+    public void truncate(long size) {
+        try {
+            file.setLength(size);
+        } catch (IOException e){
+            Panic.panic(e);
+        }
+    }
+
+    @Override
+    public void extend(long size) {
+        try {
+            long length = file.length();
+            if(size > length) {
+                PageFile.zeroFill(fc, length, size);
+                fc.force(false);
+            }
+        } catch (IOException e){
+            Panic.panic(e);
+        }
+    }
+
+    @Override
+    public long length() {
+        try {
+            return file.length();
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        return 0;
+    }
+
+    // 一次 pwrite 写整页，进程崩溃不会写一半；掉电时依赖文件系统不会拆开 8KB 的写入（如 ZFS、btrfs、data=journal 的 ext4）
+    @Override
+    public boolean atomicPageWrite() {
+        return true;
+    }
+
+    @Override
+    public void close() {
+        try {
+            fc.close();
+            file.close();
+        } catch (IOException e){
+            Panic.panic(e);
+        }
+    }
+}
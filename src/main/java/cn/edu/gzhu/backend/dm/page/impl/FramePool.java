@@ -0,0 +1,49 @@
+package cn.edu.gzhu.backend.dm.page.impl;
+
+import cn.edu.gzhu.backend.dm.page.PageCache;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * 页帧池
+ * 帧是堆外的直接缓冲区，缓存的 -mem 不再计入 Java 堆，也不会被 GC 扫描和移动；
+ * 直接内存的上限由 -XX:MaxDirectMemorySize 决定（默认与 -Xmx 相同），需要为 -mem 留出空间。
+ * 帧按 CHUNK_PAGES 页一块向操作系统申请，切成单页的帧，之后只在池中循环，从不归还。
+ * 缓存中的页数不超过缓存容量，池中的帧数也就大致以容量为上限（向上取整到块）。
+ * 空闲链表是无锁队列，缺页取帧、驱逐还帧不经过全局的锁。
+ */
+public class FramePool {
+    // 一次申请的页数（1MB）
+    static final int CHUNK_PAGES = 128;
+
+    private Queue<ByteBuffer> free;
+
+    public FramePool() {
+        this.free = new ConcurrentLinkedQueue<>();
+    }
+
+    // 取一个帧，内容是上一次使用时留下的
+    public ByteBuffer acquire() {
+        ByteBuffer frame = free.poll();
+        while (frame == null) {
+            allocateChunk();
+            frame = free.poll();
+        }
+        return frame;
+    }
+
+    public void release(ByteBuffer frame) {
+        free.offer(frame);
+    }
+
+    private void allocateChunk() {
+        ByteBuffer chunk = ByteBuffer.allocateDirect(CHUNK_PAGES * PageCache.PAGE_SIZE);
+        for (int i = 0; i < CHUNK_PAGES; i++) {
+            chunk.limit((i + 1) * PageCache.PAGE_SIZE);
+            chunk.position(i * PageCache.PAGE_SIZE);
+            free.offer(chunk.slice());
+        }
+    }
+}
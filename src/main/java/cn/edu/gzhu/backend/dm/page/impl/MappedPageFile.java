@@ -0,0 +1,185 @@
+package cn.edu.gzhu.backend.dm.page.impl;
+
+import cn.edu.gzhu.backend.dm.page.PageCache;
+import cn.edu.gzhu.backend.dm.page.PageFile;
+import cn.edu.gzhu.backend.utils.BufferUtil;
+import cn.edu.gzhu.backend.utils.Panic;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 通过内存映射读写页（-io mmap）
+ * 文件按 SEGMENT_SIZE 分段映射，只映射到文件当前长度，最后一段可能不满。
+ * 文件由 PageCache 按区段（extent）预先扩展，扩展时重新映射最后一段或追加新段。
+ *
+ * 写入映射区的页随时可能被操作系统写回，这里依赖上层的 WAL 规则：
+ * 页只在其对应的日志已经落盘后才会被写回（flush），所以 force 映射区不会违反先写日志的原则。
+ */
+public class MappedPageFile implements PageFile {
+    private static final int SEGMENT_SHIFT = 26;
+    private static final long SEGMENT_SIZE = 1L << SEGMENT_SHIFT;
+
+    private RandomAccessFile file;
+    private FileChannel fc;
+    // 扩展文件、重新映射时持有，读写映射区不需要
+    private Lock mapLock;
+
+    private volatile MappedByteBuffer[] segments;
+    private volatile long mappedLength;
+
+    public MappedPageFile(RandomAccessFile file, FileChannel fc) {
+        this.file = file;
+        this.fc = fc;
+        this.mapLock = new ReentrantLock();
+        this.segments = new MappedByteBuffer[0];
+        remap(length());
+    }
+
+    // 将 [0, length) 映射为若干段
+    private void remap(long length) {
+        int count = (int) ((length + SEGMENT_SIZE - 1) >>> SEGMENT_SHIFT);
+        MappedByteBuffer[] old = segments;
+        MappedByteBuffer[] segs = Arrays.copyOf(old, count);
+        try {
+            for (int i = 0; i < count; i++) {
+                long start = (long) i << SEGMENT_SHIFT;
+                long size = Math.min(SEGMENT_SIZE, length - start);
+                // 已经完整映射的段不需要重新映射
+                if(i < old.length && old[i] != null && old[i].capacity() == size) {
+                    continue;
+                }
+                segs[i] = fc.map(FileChannel.MapMode.READ_WRITE, start, size);
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        segments = segs;
+        mappedLength = length;
+    }
+
+    // 返回覆盖 offset 处一整页的映射视图，页不会跨段（SEGMENT_SIZE 是 PAGE_SIZE 的整数倍）
+    private ByteBuffer view(long offset) {
+        MappedByteBuffer seg = segments[(int) (offset >>> SEGMENT_SHIFT)];
+        ByteBuffer buf = seg.duplicate();
+        buf.position((int) (offset & (SEGMENT_SIZE - 1)));
+        return buf;
+    }
+
+    @Override
+    public void read(int pageNum, ByteBuffer frame) {
+        long offset = PageFile.pageOffset(pageNum);
+        long end = mappedLength;
+        int n = (int) Math.max(0, Math.min(PageCache.PAGE_SIZE, end - offset));
+        if(n > 0) {
+            ByteBuffer src = view(offset);
+            src.limit(src.position() + n);
+            frame.duplicate().put(src);
+        }
+        BufferUtil.fill(frame, n, PageCache.PAGE_SIZE, (byte) 0);
+    }
+
+    @Override
+    public void read(int startPage, ByteBuffer[] frames) {
+        // 映射区的读取只是内存拷贝，逐页读即可
+        for (int i = 0; i < frames.length; i++) {
+            read(startPage + i, frames[i]);
+        }
+    }
+
+    @Override
+    public void write(int pageNum, ByteBuffer data) {
+        long offset = PageFile.pageOffset(pageNum);
+        if(offset + PageCache.PAGE_SIZE > mappedLength) {
+            grow(offset + PageCache.PAGE_SIZE);
+        }
+        view(offset).put(data.duplicate());
+    }
+
+    @Override
+    public void write(int startPage, ByteBuffer[] pages) {
+        for (int i = 0; i < pages.length; i++) {
+            write(startPage + i, pages[i]);
+        }
+    }
+
+    private void grow(long length) {
+        mapLock.lock();
+        try {
+            if(length <= mappedLength) {
+                return;
+            }
+            long fileLength = file.length();
+            if(length > fileLength) {
+                // 写入真实的 0 而不是留下空洞，避免写映射区时才发现磁盘已满
+                PageFile.zeroFill(fc, fileLength, length);
+                fc.force(false);
+            }
+            remap(length);
+        } catch (IOException e) {
+            Panic.panic(e);
+        } finally {
+            mapLock.unlock();
+        }
+    }
+
+    @Override
+    public void force() {
+        for (MappedByteBuffer seg : segments) {
+            seg.force();
+        }
+    }
+
+    @Override
+    public void truncate(long size) {
+        mapLock.lock();
+        try {
+            file.setLength(size);
+            segments = new MappedByteBuffer[0];
+            remap(size);
+        } catch (IOException e) {
+            Panic.panic(e);
+        } finally {
+            mapLock.unlock();
+        }
+    }
+
+    @Override
+    public void extend(long size) {
+        grow(size);
+    }
+
+    @Override
+    public long length() {
+        try {
+            return file.length();
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        return 0;
+    }
+
+    // 操作系统按 4KB 的内存页分别写回，进程在拷贝进映射区的中途崩溃也会留下写了一半的页
+    @Override
+    public boolean atomicPageWrite() {
+        return false;
+    }
+
+    @Override
+    public void close() {
+        force();
+        segments = new MappedByteBuffer[0];
+        try {
+            fc.close();
+            file.close();
+        } catch (IOException e){
+            Panic.panic(e);
+        }
+    }
+}
@@ -1,45 +1,57 @@
 package cn.edu.gzhu.backend.dm.page.impl;
 
 import cn.edu.gzhu.backend.common.AbstractCache;
+import cn.edu.gzhu.backend.common.EvictionPolicy;
 import cn.edu.gzhu.backend.dm.page.Page;
 import cn.edu.gzhu.backend.dm.page.PageCache;
+import cn.edu.gzhu.backend.dm.page.PageFile;
 import cn.edu.gzhu.backend.utils.Panic;
 
-import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntFunction;
 
 import cn.edu.gzhu.common.Error;
 
 public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
     private static final int MEM_MIN_LIM = 10;
+    // 一次聚集写的最大页数（1MB）
+    private static final int MAX_GATHER = 128;
+    // 文件按区段扩展：每次扩展当前大小的 1/8，介于 1MB 和 64MB 之间
+    private static final int MIN_EXTENT_PAGES = (1 << 20) / PAGE_SIZE;
+    private static final int MAX_EXTENT_PAGES = (64 << 20) / PAGE_SIZE;
     public static final String DB_SUFFIX = ".db";
 
-    private RandomAccessFile file;
-    private FileChannel fc;
-    private Lock fileLock;
+    private PageFile file;
 
+    // 逻辑页数，即已经分配出去的最大页号
     private AtomicInteger pageNumbers;
+    // 文件实际容纳的页数，不小于 pageNumbers，多出的是预分配的全 0 页
+    private volatile int allocatedPages;
+    private Lock extendLock;
 
-    public PageCacheImpl(RandomAccessFile file, FileChannel fileChannel, int maxResource) {
-        super(maxResource);
+    private FramePool framePool;
+
+    private ReadAhead readAhead;
+
+    public PageCacheImpl(PageFile file, int maxResource, IntFunction<EvictionPolicy> policies) {
+        super(maxResource, policies);
         if(maxResource < MEM_MIN_LIM){
             Panic.panic(Error.MemTooSmallException);
         }
-        long length = 0;
-        try {
-            length = file.length();
-        } catch (IOException e) {
-            Panic.panic(e);
-        }
         this.file = file;
-        this.fc = fileChannel;
-        this.fileLock = new ReentrantLock();
-        this.pageNumbers = new AtomicInteger((int) length / PAGE_SIZE);
+        // 正常关闭时文件会被截断到逻辑页数，崩溃后多出的预分配页由恢复过程截断
+        this.allocatedPages = (int) (file.length() / PAGE_SIZE);
+        this.pageNumbers = new AtomicInteger(allocatedPages);
+        this.extendLock = new ReentrantLock();
+        this.framePool = new FramePool();
+        this.readAhead = new ReadAhead(this, maxResource);
     }
 
     /**
@@ -51,22 +63,10 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
     @Override
     protected Page getForCache(long key) throws Exception {
         int pageNum = (int)key;
-        long offset = pageOffset(pageNum);
-
-        ByteBuffer buf = ByteBuffer.allocate(PAGE_SIZE);
-        fileLock.lock();
-        try{
-            fc.position(offset);
-            fc.read(buf);
-        } catch (IOException e){
-            Panic.panic(e);
-        }
-        fileLock.unlock();
-        return new PageImpl(pageNum, buf.array(), this);
-    }
-
-    private static long pageOffset(int pageNum) {
-        return (long) (pageNum - 1) * PAGE_SIZE;
+        // 直接读入池中的帧
+        ByteBuffer frame = framePool.acquire();
+        file.read(pageNum, frame);
+        return new PageImpl(pageNum, frame, this);
     }
 
     @Override
@@ -75,48 +75,108 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
             flush(page);
             page.setDirty(false);
         }
+        framePool.release(page.getData());
     }
 
     @Override
     public int newPage(byte[] initData) {
         int pageNum = pageNumbers.incrementAndGet();
-        Page page = new PageImpl(pageNum, initData, null);
-        flush(page);
+        if(pageNum > allocatedPages) {
+            extend(pageNum);
+        }
+        // 新页作为脏页直接放入缓存，和相邻的新页一起在检查点或驱逐时写回；缓存满时退回直接写
+        if(reservePrefetch(pageNum)) {
+            ByteBuffer frame = framePool.acquire();
+            frame.duplicate().put(initData, 0, PAGE_SIZE);
+            Page page = new PageImpl(pageNum, frame, this);
+            page.setDirty(true);
+            completePrefetch(pageNum, page);
+        } else {
+            file.write(pageNum, ByteBuffer.wrap(initData));
+        }
         return pageNum;
     }
 
-    private void flush(Page page) {
-        int pageNum = page.getPageNumber();
-        long offset = pageOffset(pageNum);
-        fileLock.lock();
-        try{
-            ByteBuffer buf = ByteBuffer.wrap(page.getData());
-            fc.position(offset);
-            fc.write(buf);
-            fc.force(false);
-        } catch (IOException e){
-            Panic.panic(e);
+    // 扩展文件使其至少容纳 pageNum 页，一次扩展一个区段
+    private void extend(int pageNum) {
+        extendLock.lock();
+        try {
+            if(pageNum <= allocatedPages) {
+                return;
+            }
+            int extent = Math.min(MAX_EXTENT_PAGES, Math.max(MIN_EXTENT_PAGES, allocatedPages / 8));
+            int allocated = Math.max(pageNum, allocatedPages + extent);
+            file.extend(PageFile.pageOffset(allocated + 1));
+            allocatedPages = allocated;
         } finally {
-            fileLock.unlock();
+            extendLock.unlock();
         }
     }
 
+    // 写回页面，不 force：数据的持久性由 WAL 保证，落盘交给检查点统一 force
+    private void flush(Page page) {
+        file.write(page.getPageNumber(), page.getData());
+    }
+
     @Override
     public Page getPage(int pageNum) throws Exception {
+        readAhead.access(pageNum);
         return get((long) pageNum);
     }
 
     @Override
-    public void close() {
-        super.close();
+    public void prefetch(int[] pageNums) {
+        readAhead.hint(pageNums);
+    }
+
+    /**
+     * 将 [start, end] 中不在缓存的页读入缓存，连续的页一次读取
+     */
+    void prefetchRun(int start, int end) {
+        int runStart = start;
+        for (int pageNum = start; pageNum <= end + 1; pageNum ++) {
+            if(pageNum <= end && reservePrefetch(pageNum)) {
+                continue;
+            }
+            if(pageNum > runStart) {
+                readRun(runStart, pageNum - 1);
+            }
+            runStart = pageNum + 1;
+        }
+    }
+
+    private void readRun(int start, int end) {
+        ByteBuffer[] frames = new ByteBuffer[end - start + 1];
+        for (int i = 0; i < frames.length; i++) {
+            frames[i] = framePool.acquire();
+        }
+        boolean read = false;
         try {
-            fc.close();
-            file.close();
-        } catch (IOException e){
-            Panic.panic(e);
+            file.read(start, frames);
+            read = true;
+        } finally {
+            // 读取失败时也要结束占位，否则等待这些页的 get 永远不会被唤醒
+            for (int i = 0; i < frames.length; i++) {
+                if(read) {
+                    completePrefetch(start + i, new PageImpl(start + i, frames[i], this));
+                } else {
+                    framePool.release(frames[i]);
+                    completePrefetch(start + i, null);
+                }
+            }
         }
     }
 
+    @Override
+    public void close() {
+        readAhead.close();
+        super.close();
+        // 去掉预分配而未使用的页，下次打开时文件长度即逻辑页数
+        file.truncate(PageFile.pageOffset(pageNumbers.get() + 1));
+        file.force();
+        file.close();
+    }
+
     @Override
     public void release(Page page) {
         release((long) page.getPageNumber());
@@ -124,13 +184,9 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
 
     @Override
     public void truncateByPageNum(int maxPageNum) {
-        long size = pageOffset(maxPageNum + 1);
-        try {
-            file.setLength(size);
-        } catch (IOException e){
-            Panic.panic(e);
-        }
+        file.truncate(PageFile.pageOffset(maxPageNum + 1));
         pageNumbers.set(maxPageNum);
+        allocatedPages = maxPageNum;
     }
 
     @Override
@@ -141,5 +197,58 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
     @Override
     public void flushPage(Page page) {
         flush(page);
+        file.force();
+    }
+
+    @Override
+    public void flushDirtyPages(long lsn) {
+        // 先引用住要写回的脏页，防止写回过程中被驱逐、帧被复用
+        List<Page> dirty = pinAll(page -> page.isDirty() && (page.getRecLsn() == 0 || page.getRecLsn() < lsn));
+        dirty.sort(Comparator.comparingInt(Page::getPageNumber));
+        // 页号连续的脏页合并为一次聚集写
+        int i = 0;
+        while (i < dirty.size()) {
+            int j = i + 1;
+            while (j < dirty.size() && j - i < MAX_GATHER
+                    && dirty.get(j).getPageNumber() == dirty.get(j - 1).getPageNumber() + 1) {
+                j ++;
+            }
+            List<Page> run = dirty.subList(i, j);
+            // 先清脏标记再写：写的过程中又被修改的页会重新变脏，留给下一次检查点
+            ByteBuffer[] data = new ByteBuffer[run.size()];
+            for (int k = 0; k < run.size(); k++) {
+                run.get(k).setDirty(false);
+                data[k] = run.get(k).getData();
+            }
+            if(data.length == 1) {
+                file.write(run.get(0).getPageNumber(), data[0]);
+            } else {
+                file.write(run.get(0).getPageNumber(), data);
+            }
+            for (Page page : run) {
+                release(page);
+            }
+            i = j;
+        }
+    }
+
+    @Override
+    public Map<Integer, Long> dirtyPageTable() {
+        Map<Integer, Long> table = new HashMap<>();
+        for (Page page : pinAll(Page::isDirty)) {
+            table.put(page.getPageNumber(), page.getRecLsn());
+            release(page);
+        }
+        return table;
+    }
+
+    @Override
+    public void sync() {
+        file.force();
+    }
+
+    @Override
+    public boolean atomicPageWrite() {
+        return file.atomicPageWrite();
     }
 }
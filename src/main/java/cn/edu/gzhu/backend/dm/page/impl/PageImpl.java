@@ -3,6 +3,7 @@ package cn.edu.gzhu.backend.dm.page.impl;
 import cn.edu.gzhu.backend.dm.page.Page;
 import cn.edu.gzhu.backend.dm.page.PageCache;
 
+import java.nio.ByteBuffer;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -10,17 +11,20 @@ public class PageImpl implements Page {
     // 页面的页号
     private int pageNumber;
 
-    // 实际包含的字节数据
-    private byte[] data;
+    // 实际包含的字节数据，来自 FramePool 的堆外帧
+    private ByteBuffer data;
 
     // 是否为脏页面
-    private boolean dirty;
+    private volatile boolean dirty;
+
+    // 使页变脏的第一条日志的 LSN，0 表示还没有日志作用于它
+    private volatile long recLsn;
 
     private Lock lock;
 
     private PageCache pc;
 
-    public PageImpl(int pageNumber, byte[] data, PageCache pc){
+    public PageImpl(int pageNumber, ByteBuffer data, PageCache pc){
         this.pageNumber = pageNumber;
         this.data = data;
         this.pc = pc;
@@ -45,6 +49,19 @@ public class PageImpl implements Page {
     @Override
     public void setDirty(boolean dirty) {
         this.dirty = dirty;
+        if(!dirty) {
+            recLsn = 0;
+        }
+    }
+
+    @Override
+    public long getRecLsn() {
+        return recLsn;
+    }
+
+    @Override
+    public void setRecLsn(long recLsn) {
+        this.recLsn = recLsn;
     }
 
     @Override
@@ -58,7 +75,7 @@ public class PageImpl implements Page {
     }
 
     @Override
-    public byte[] getData() {
+    public ByteBuffer getData() {
         return data;
     }
 }
@@ -0,0 +1,122 @@
+package cn.edu.gzhu.backend.dm.page.impl;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 页预读
+ * 连续 TRIGGER 次按页号递增访问时认为正在顺序扫描，由后台线程把之后 window 个页一次读入缓存，
+ * 当前位置距离已预读的末尾不足半个窗口时再发起下一批。
+ * 上层也可以直接给出即将访问的页（如 B+ 树范围查询得到的 uid），按连续段批量读入。
+ *
+ * 预读只是提示：页已在缓存、缓存已满时直接跳过，不影响正常的 getPage。
+ */
+public class ReadAhead {
+    private static final int TRIGGER = 2;
+    // 一次预读的最大页数（256KB）
+    private static final int MAX_WINDOW = 32;
+
+    private PageCacheImpl pc;
+    private int window;
+    // 一次提示最多预读的页数，避免一次大范围查询冲刷整个缓存
+    private int hintLimit;
+    private ExecutorService executor;
+    private volatile boolean closed;
+
+    // 顺序检测的状态，多线程交错访问时只是启发式，不需要精确，不加锁
+    // 高 32 位为上次访问的页号，低 32 位为连续递增访问的次数（最多记到 TRIGGER）
+    private AtomicLong last;
+    // 已经发起预读的最大页号
+    private AtomicInteger aheadTo;
+
+    public ReadAhead(PageCacheImpl pc, int maxResource) {
+        this.pc = pc;
+        this.window = Math.max(1, Math.min(MAX_WINDOW, maxResource / 4));
+        this.hintLimit = Math.max(window, maxResource / 4);
+        this.last = new AtomicLong();
+        this.aheadTo = new AtomicInteger();
+        this.executor = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "read-ahead");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * 记录一次对 pageNum 的访问，检测到顺序访问时发起预读
+     */
+    public void access(int pageNum) {
+        long state = last.get();
+        int lastPage = (int) (state >>> 32);
+        if(pageNum == lastPage) {
+            return;
+        }
+        int streak = pageNum == lastPage + 1 ? Math.min((int) state + 1, TRIGGER) : 0;
+        // 与其他线程的访问交错时放弃这次记录
+        if(!last.compareAndSet(state, ((long) pageNum << 32) | streak)) {
+            return;
+        }
+        if(streak == 0) {
+            aheadTo.set(0);
+            return;
+        }
+        int ahead = aheadTo.get();
+        if(streak < TRIGGER || ahead - pageNum > window / 2) {
+            return;
+        }
+        int start = Math.max(pageNum + 1, ahead + 1);
+        int end = Math.min(pageNum + window, pc.getPageNumber());
+        // 只有推进了 aheadTo 的线程发起预读，同一段不会重复提交
+        if(start > end || !aheadTo.compareAndSet(ahead, end)) {
+            return;
+        }
+        submit(start, end);
+    }
+
+    /**
+     * 提示即将访问这些页，去重排序后按连续段预读
+     */
+    public void hint(int[] pageNums) {
+        int maxPage = pc.getPageNumber();
+        int[] pages = Arrays.stream(pageNums).filter(p -> p > 0 && p <= maxPage).sorted().distinct().limit(hintLimit).toArray();
+        int i = 0;
+        while (i < pages.length) {
+            int j = i;
+            while (j + 1 < pages.length && pages[j + 1] == pages[j] + 1 && j + 1 - i < MAX_WINDOW) {
+                j ++;
+            }
+            submit(pages[i], pages[j]);
+            i = j + 1;
+        }
+    }
+
+    private void submit(int start, int end) {
+        try {
+            executor.execute(() -> {
+                if(!closed) {
+                    pc.prefetchRun(start, end);
+                }
+            });
+        } catch (Exception e) {
+            // 已经关闭，放弃预读
+        }
+    }
+
+    /**
+     * 丢弃尚未开始的预读，等待正在进行的预读结束
+     * 不能用 shutdownNow：中断正在读文件的预读线程会关闭与页缓存共用的 FileChannel
+     */
+    public void close() {
+        closed = true;
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -10,7 +10,6 @@ import cn.edu.gzhu.backend.im.Node.LeafSearchRangeRes;
 import cn.edu.gzhu.backend.im.Node.InsertAndSplitRes;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -42,7 +41,7 @@ public class BPlusTree {
         bootLock.lock();
         try {
             SubArray subArray = bootDataItem.data();
-            return Parser.parseLong(Arrays.copyOfRange(subArray.raw, subArray.start, subArray.start + 8));
+            return subArray.raw.getLong(subArray.start);
         } finally {
             bootLock.unlock();
         }
@@ -55,7 +54,7 @@ public class BPlusTree {
             long newRootUid = dm.insert(TransactionManagerImpl.SUPER_XID, rootRaw);
             bootDataItem.before();
             SubArray diRaw = bootDataItem.data();
-            System.arraycopy(Parser.long2Byte(newRootUid), 0, diRaw.raw, diRaw.start, 8);
+            diRaw.raw.putLong(diRaw.start, newRootUid);
             bootDataItem.after(TransactionManagerImpl.SUPER_XID);
         } finally {
             bootLock.unlock();
@@ -103,6 +102,10 @@ public class BPlusTree {
                 leafUid = res.siblingUid;
             }
         }
+        // 调用者随后会逐个读取这些记录，提前把它们所在的页读入缓存
+        if(uids.size() > 1) {
+            dm.prefetch(uids);
+        }
         return uids;
     }
 
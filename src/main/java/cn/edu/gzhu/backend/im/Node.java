@@ -3,10 +3,10 @@ package cn.edu.gzhu.backend.im;
 import cn.edu.gzhu.backend.common.SubArray;
 import cn.edu.gzhu.backend.dm.dataItem.DataItem;
 import cn.edu.gzhu.backend.tm.impl.TransactionManagerImpl;
-import cn.edu.gzhu.backend.utils.Parser;
+import cn.edu.gzhu.backend.utils.BufferUtil;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -31,67 +31,66 @@ public class Node {
 
     static void setRawIsLeaf(SubArray raw, boolean isLeaf){
         if(isLeaf){
-            raw.raw[raw.start + IS_LEAF_OFFSET] = (byte) 1;
+            raw.raw.put(raw.start + IS_LEAF_OFFSET, (byte) 1);
         } else{
-            raw.raw[raw.start + IS_LEAF_OFFSET] = (byte) 0;
+            raw.raw.put(raw.start + IS_LEAF_OFFSET, (byte) 0);
         }
     }
 
     static boolean getRawIfLeaf(SubArray raw){
-        return raw.raw[raw.start + IS_LEAF_OFFSET] == (byte) 1;
+        return raw.raw.get(raw.start + IS_LEAF_OFFSET) == (byte) 1;
     }
 
     static void setRawNoKeys(SubArray raw, int noKeys){
-        System.arraycopy(Parser.short2Byte((short) noKeys), 0, raw.raw, raw.start + NO_KEYS_OFFSET, 2);
+        raw.raw.putShort(raw.start + NO_KEYS_OFFSET, (short) noKeys);
     }
 
     static int getRawNoKeys(SubArray raw){
-        return (int) Parser.parseShort(Arrays.copyOfRange(raw.raw, raw.start + NO_KEYS_OFFSET, raw.start + NO_KEYS_OFFSET + 2));
+        return (int) raw.raw.getShort(raw.start + NO_KEYS_OFFSET);
     }
 
     static void setRawSibling(SubArray raw, long sibling){
-        System.arraycopy(Parser.long2Byte(sibling), 0, raw.raw, raw.start + SIBLING_OFFSET, 8);
+        raw.raw.putLong(raw.start + SIBLING_OFFSET, sibling);
     }
 
     static long getRawSibling(SubArray raw){
-        return Parser.parseLong(Arrays.copyOfRange(raw.raw, raw.start + SIBLING_OFFSET, raw.start + SIBLING_OFFSET + 8));
+        return raw.raw.getLong(raw.start + SIBLING_OFFSET);
     }
 
     static void setRawKthSon(SubArray raw, long uid, int kth){
         int offset = raw.start + NODE_HEADER_SIZE + kth * (8 * 2);
-        System.arraycopy(Parser.long2Byte(uid), 0, raw.raw, offset, 8);
+        raw.raw.putLong(offset, uid);
     }
 
     static long getRawKthSon(SubArray raw, int kth) {
         int offset = raw.start+NODE_HEADER_SIZE+kth*(8*2);
-        return Parser.parseLong(Arrays.copyOfRange(raw.raw, offset, offset+8));
+        return raw.raw.getLong(offset);
     }
 
     static void setRawKthKey(SubArray raw, long key, int kth){
         int offset = raw.start + NODE_HEADER_SIZE + kth * (8 * 2) + 8;
-        System.arraycopy(Parser.long2Byte(key), 0, raw.raw, offset, 8);
+        raw.raw.putLong(offset, key);
     }
 
     static long getRawKthKey(SubArray raw, int kth) {
         int offset = raw.start + NODE_HEADER_SIZE + kth * (8 * 2) + 8;
-        return Parser.parseLong(Arrays.copyOfRange(raw.raw, offset, offset+8));
+        return raw.raw.getLong(offset);
     }
 
     static void copyRawFromKth(SubArray from, SubArray to, int kth) {
         int offset = from.start + NODE_HEADER_SIZE + kth * (8 * 2);
-        System.arraycopy(from.raw, offset, to.raw, to.start + NODE_HEADER_SIZE, from.end - offset);
+        BufferUtil.copy(from.raw, offset, to.raw, to.start + NODE_HEADER_SIZE, from.end - offset);
     }
 
     static void shiftRawKth(SubArray raw, int kth) {
         int begin = raw.start+NODE_HEADER_SIZE + (kth + 1) * (8 * 2);
-        int end = raw.start+NODE_SIZE - 1;
-        for(int i = end; i >= begin; i --) {
-            raw.raw[i] = raw.raw[i - (8 * 2)];
-        }
+        int end = raw.start+NODE_SIZE;
+        BufferUtil.move(raw.raw, begin - (8 * 2), begin, end - begin);
     }
 
     static byte[] newRootRaw(long left, long right, long key){
-        SubArray raw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
+        byte[] bytes = new byte[NODE_SIZE];
+        SubArray raw = new SubArray(ByteBuffer.wrap(bytes), 0, NODE_SIZE);
         setRawIsLeaf(raw, false);
         setRawNoKeys(raw, 2);
         setRawSibling(raw, 0);
@@ -99,17 +98,18 @@ public class Node {
         setRawKthKey(raw, key, 0);
         setRawKthSon(raw, right, 1);
         setRawKthKey(raw, Long.MAX_VALUE, 1);
-        return raw.raw;
+        return bytes;
     }
 
     static byte[] newNilRootRaw(){
-        SubArray raw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
+        byte[] bytes = new byte[NODE_SIZE];
+        SubArray raw = new SubArray(ByteBuffer.wrap(bytes), 0, NODE_SIZE);
 
         setRawIsLeaf(raw, true);
         setRawNoKeys(raw, 0);
         setRawSibling(raw, 0);
 
-        return raw.raw;
+        return bytes;
     }
 
     static Node loadNode(BPlusTree bTree, long uid) throws Exception {
@@ -257,12 +257,13 @@ public class Node {
     }
 
     private SplitRes split() throws Exception {
-        SubArray nodeRaw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
+        byte[] bytes = new byte[NODE_SIZE];
+        SubArray nodeRaw = new SubArray(ByteBuffer.wrap(bytes), 0, NODE_SIZE);
         setRawIsLeaf(nodeRaw, getRawIfLeaf(raw));
         setRawNoKeys(nodeRaw, BALANCE_NUMBER);
         setRawSibling(nodeRaw, getRawSibling(raw));
         copyRawFromKth(raw, nodeRaw, BALANCE_NUMBER);
-        long son = tree.dm.insert(TransactionManagerImpl.SUPER_XID, nodeRaw.raw);
+        long son = tree.dm.insert(TransactionManagerImpl.SUPER_XID, bytes);
         setRawNoKeys(raw, BALANCE_NUMBER);
         setRawSibling(raw, son);
 
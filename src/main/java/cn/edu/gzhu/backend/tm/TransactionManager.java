@@ -64,7 +64,7 @@ public interface TransactionManager {
             Panic.panic(e);
         }
 
-        return new TransactionManagerImpl(raf, fc);
+        return new TransactionManagerImpl(path, raf, fc);
     }
 
     public static TransactionManagerImpl open(String path){
@@ -85,6 +85,6 @@ public interface TransactionManager {
             Panic.panic(e);
         }
 
-        return new TransactionManagerImpl(raf, fc);
+        return new TransactionManagerImpl(path, raf, fc);
     }
 }
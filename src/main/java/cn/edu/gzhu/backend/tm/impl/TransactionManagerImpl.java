@@ -5,19 +5,59 @@ import cn.edu.gzhu.backend.utils.Panic;
 import cn.edu.gzhu.backend.utils.Parser;
 import cn.edu.gzhu.common.Error;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+/**
+ * XID 由内存中的 lastXid 原子递增分配，不加锁也不写文件。
+ * XID Header 中的 XIDCounter 记录的是已预留的最大 XID，文件长度与之对应，预留区间内的状态初始为 active；
+ * 分配越过 XIDCounter 时才加锁再预留 XID_RESERVE 个，并落盘，保证任何已分配的 XID 都不会在重启后被重复分配。
+ * 重启后从 XIDCounter 之后继续分配，上次未用完的预留永远是 active，即视为未提交。
+ *
+ * 崩溃时丢失的 active 事务不会有已提交的状态，恢复后仍视为未提交。
+ * 旧版本的 begin 不落盘，打开时 XID Header 与文件长度可能不一致，以两者中较大的为准，并将文件补齐。
+ *
+ * commit 和 abort 需要落盘，并发的提交者通过组提交共享 force：
+ * 每次写入后递增 writeSeq，落盘前先取得 syncLock，若已落盘的序号 syncedSeq 已经覆盖了自己的写入则直接返回，
+ * 否则由它一次 force 覆盖此时所有已完成的写入，等在 syncLock 上的其他提交者随后直接返回。
+ *
+ * 冻结：
+ * 水位 horizon 之前的事务都已结束，状态不会再改变，不再逐个保存，只保存其中 aborted 的 XID 区间，其余都视为 committed。
+ * 本次启动之前遗留的 active 事务一定已经结束：有日志的在恢复时已被回滚为 aborted，
+ * 没有日志的（包括未用完的预留）从未提交，冻结时同样记为 aborted。
+ * 每次重启都会留下一段未用完的预留，连续的 aborted XID 合并为一个区间，冻结的内容不随预留的数量增长。
+ * 每次预留时向后推进水位，越过的事务超过 COMPACT_XIDS 个时重写 XID 文件，丢弃水位之前的状态字节。
+ * 文件的两种格式：
+ *  未冻结过：[XIDCounter 8] [XID 1 的状态] ... [XID XIDCounter 的状态]
+ *  冻结后：  [MAGIC 8] [XIDCounter 8] [Horizon 8] [RangeCount 4] [From 8] [To 8]... [XID Horizon 的状态] ... [XID XIDCounter 的状态]
+ *  [From, To] 是闭区间，按 From 升序且互不相邻。
+ * XIDCounter 不会是负数，以负数 MAGIC 开头的是冻结后的格式。
+ */
 public class TransactionManagerImpl implements TransactionManager {
     // XID文件头长度
     public static final int LEN_XID_HEADER_LENGTH = 8;
     // 每个事务的占用长度
     private static final int XID_FIELD_SIZE = 1;
 
+    // 冻结后的文件头
+    private static final long MAGIC = 0x8058494400000002L;
+    private static final int OF_FROZEN_COUNTER = 8;
+    private static final int OF_HORIZON = OF_FROZEN_COUNTER + 8;
+    private static final int OF_ABORTED_COUNT = OF_HORIZON + 8;
+    private static final int OF_ABORTED = OF_ABORTED_COUNT + 4;
+    private static final int ABORTED_RANGE_SIZE = 16;
+
     // 事务的三种状态
     private static final byte FIELD_TRAN_ACTIVE = 0;
     private static final byte FIELD_TRAN_COMMITTED = 1;
@@ -27,22 +67,124 @@ public class TransactionManagerImpl implements TransactionManager {
     public static final long SUPER_XID = 0;
 
     public static final String XID_SUFFIX = ".xid";
+    private static final String COMPACT_SUFFIX = ".xid.tmp";
+
+    // 每次预留的 XID 个数
+    private static final int XID_RESERVE = 10000;
+    // 水位越过这么多事务才重写文件
+    private static final int COMPACT_XIDS = 1 << 20;
 
+    private String path;
     private RandomAccessFile file;
     private FileChannel fc;
-    private long xidCounter;
+    // 重写文件时持有写锁，替换 file 和 fc；读写文件的其他操作持有读锁
+    private ReadWriteLock fileLock;
+
+    // 已预留的最大 XID，即 XID Header 中的值
+    private volatile long xidCounter;
+    // 已分配的最大 XID
+    private AtomicLong lastXid;
     private Lock counterLock;
+    // 所有事务状态在内存中的副本，写时同时写入文件
+    private XidStatusTable statusTable;
 
-    public TransactionManagerImpl(RandomAccessFile raf, FileChannel fc){
+    // XIDCounter 在文件中的位置
+    private long counterOffset;
+    // 文件中第一个状态字节的位置，对应的 XID 为 horizon
+    private long statusOffset;
+    // 冻结水位，之前的事务只保存 aborted 的 XID 区间，依次为第 i 个区间的 From 和 To
+    private volatile long horizon;
+    private volatile long[] frozenAborted;
+    // 本次启动时已预留的最大 XID，之前的 active 事务都是遗留的
+    private long sessionStart;
+    // 已确认可以冻结的位置，重写文件时成为新的 horizon
+    private long frontier;
+
+    // 已完成写入的序号和已落盘的序号
+    private AtomicLong writeSeq;
+    private volatile long syncedSeq;
+    private Lock syncLock;
+
+    public TransactionManagerImpl(String path, RandomAccessFile raf, FileChannel fc){
+        this.path = path;
         this.file = raf;
         this.fc = fc;
+        fileLock = new ReentrantReadWriteLock();
         counterLock = new ReentrantLock();
+        statusTable = new XidStatusTable();
+        writeSeq = new AtomicLong();
+        syncLock = new ReentrantLock();
+        // 重写时崩溃，原文件不受影响
+        new File(path + COMPACT_SUFFIX).delete();
+        readHeader();
         checkXIDCounter();
+        loadStatus();
+        lastXid = new AtomicLong(xidCounter);
+        sessionStart = xidCounter;
+        frontier = horizon;
+    }
+
+    // 读取文件头，确定 XIDCounter、状态字节的位置和冻结的状态
+    private void readHeader() {
+        long fileLength = 0;
+        try{
+            fileLength = file.length();
+        } catch (IOException e) {
+            Panic.panic(Error.BadXIDFileException);
+        }
+        if(fileLength < LEN_XID_HEADER_LENGTH){
+            Panic.panic(Error.BadXIDFileException);
+        }
+        long first = Parser.parseLong(read(0, 8));
+        if(first != MAGIC) {
+            counterOffset = 0;
+            statusOffset = LEN_XID_HEADER_LENGTH;
+            horizon = 1;
+            frozenAborted = new long[0];
+            return;
+        }
+        if(fileLength < OF_ABORTED) {
+            Panic.panic(Error.BadXIDFileException);
+        }
+        counterOffset = OF_FROZEN_COUNTER;
+        horizon = Parser.parseLong(read(OF_HORIZON, 8));
+        int count = Parser.parseInt(read(OF_ABORTED_COUNT, 4));
+        if(horizon < 1 || count < 0 || fileLength < OF_ABORTED + (long) count * ABORTED_RANGE_SIZE) {
+            Panic.panic(Error.BadXIDFileException);
+        }
+        ByteBuffer aborted = ByteBuffer.wrap(read(OF_ABORTED, count * ABORTED_RANGE_SIZE));
+        frozenAborted = new long[count * 2];
+        for (int i = 0; i < count * 2; i++) {
+            frozenAborted[i] = aborted.getLong();
+        }
+        for (int i = 0; i < count; i++) {
+            // 区间必须非空、升序，并且都在水位之前
+            long prevTo = i == 0 ? 0 : frozenAborted[2 * i - 1];
+            if(frozenAborted[2 * i] <= prevTo || frozenAborted[2 * i] > frozenAborted[2 * i + 1] || frozenAborted[2 * i + 1] >= horizon) {
+                Panic.panic(Error.BadXIDFileException);
+            }
+        }
+        statusOffset = OF_ABORTED + (long) count * ABORTED_RANGE_SIZE;
+    }
+
+    private byte[] read(long position, int length) {
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        try {
+            while (buf.hasRemaining()) {
+                if(fc.read(buf, position + buf.position()) < 0) {
+                    Panic.panic(Error.BadXIDFileException);
+                }
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        return buf.array();
     }
 
     /**
      * 检查XID文件是否合法
      * 读取XID_FILE_HEADER中的XIDCounter，根据它计算文件的理论长度，对比实际长度
+     * 两者不一致时取较大者，缺少的状态补为 active
      */
     private void checkXIDCounter() {
         long fileLength = 0;
@@ -51,103 +193,266 @@ public class TransactionManagerImpl implements TransactionManager {
         } catch (IOException e) {
             Panic.panic(Error.BadXIDFileException);
         }
-        if(fileLength < LEN_XID_HEADER_LENGTH){
+        this.xidCounter = Parser.parseLong(read(counterOffset, 8));
+        if(xidCounter < horizon - 1) {
             Panic.panic(Error.BadXIDFileException);
         }
-        ByteBuffer buf = ByteBuffer.allocate(LEN_XID_HEADER_LENGTH);
-        try{
-            fc.position(0);
-            fc.read(buf);
+        long end = getXidPosition(this.xidCounter + 1);
+        if(end == fileLength) {
+            return;
+        }
+        if(end < fileLength) {
+            xidCounter = horizon - 1 + (fileLength - statusOffset) / XID_FIELD_SIZE;
+        }
+        try {
+            file.setLength(getXidPosition(xidCounter + 1));
+            fc.write(ByteBuffer.wrap(Parser.long2Byte(xidCounter)), counterOffset);
+            fc.force(false);
         } catch (IOException e) {
             Panic.panic(e);
         }
-        this.xidCounter = Parser.parseLong(buf.array());
-        long end = getXidPosition(this.xidCounter + 1);
-        if(end != fileLength){
-            Panic.panic(Error.BadXIDFileException);
+    }
+
+    // 将 XID 文件中所有未冻结事务的状态读入内存
+    private void loadStatus() {
+        statusTable.truncate(horizon);
+        ByteBuffer buf = ByteBuffer.allocate(XidStatusTable.CHUNK_XIDS);
+        long xid = horizon;
+        while (xid <= xidCounter) {
+            buf.clear();
+            buf.limit((int) Math.min(buf.capacity(), xidCounter - xid + 1));
+            try {
+                while (buf.hasRemaining()) {
+                    fc.read(buf, getXidPosition(xid) + buf.position());
+                }
+            } catch (IOException e) {
+                Panic.panic(e);
+            }
+            byte[] raw = buf.array();
+            for (int i = 0; i < buf.limit(); i++) {
+                if(raw[i] != FIELD_TRAN_ACTIVE) {
+                    statusTable.set(xid + i, raw[i]);
+                }
+            }
+            xid += buf.limit();
         }
     }
 
     // 根据事务 xid 取得其在 xid 文件中对应的位置
     private long getXidPosition(long xid) {
-        return LEN_XID_HEADER_LENGTH + (xid - 1) * XID_FIELD_SIZE;
+        return statusOffset + (xid - horizon) * XID_FIELD_SIZE;
     }
 
 
-    // 将 xid 加一，并更新 XID Header
-    private void IncreaseXIDCounter() {
-        xidCounter ++;
-        ByteBuffer buf = ByteBuffer.wrap(Parser.long2Byte(xidCounter));
+    // 预留到 xid 之后 XID_RESERVE 个 XID：先扩展文件，再更新 XID Header 并落盘
+    private void reserveXID(long xid) {
+        counterLock.lock();
         try {
-            fc.position(0);
-            fc.write(buf);
+            if(xid <= xidCounter) {
+                return;
+            }
+            long reserved = xid + XID_RESERVE - 1;
+            file.setLength(getXidPosition(reserved + 1));
+            fc.write(ByteBuffer.wrap(Parser.long2Byte(reserved)), counterOffset);
+            // 文件长度也要落盘
+            fc.force(true);
+            xidCounter = reserved;
         } catch (IOException e){
             Panic.panic(e);
+        } finally {
+            counterLock.unlock();
         }
+    }
+
+    /**
+     * 向后推进可以冻结的位置，越过的事务足够多时重写 XID 文件
+     * 只在 begin 中调用，此时恢复已经结束
+     */
+    private void freeze() {
+        counterLock.lock();
         try {
-            // 将数据刷到磁盘，但不包括元数据
-            fc.force(false);
-        } catch (IOException e){
+            long last = lastXid.get();
+            long f = Math.max(frontier, sessionStart + 1);
+            while (f <= last && statusTable.get(f) != FIELD_TRAN_ACTIVE) {
+                f ++;
+            }
+            frontier = f;
+            if(frontier - horizon >= COMPACT_XIDS) {
+                compact(frontier);
+            }
+        } finally {
+            counterLock.unlock();
+        }
+    }
+
+    /**
+     * 将 newHorizon 之前的状态冻结，重写 XID 文件，需持有 counterLock
+     * 水位之前仍是 active 的只能是之前遗留的事务或未用完的预留，与 aborted 的一起记入区间
+     */
+    private void compact(long newHorizon) {
+        // 最后一个区间可能被延长，不能改动读者正在使用的数组
+        long[] aborted = frozenAborted.clone();
+        int len = aborted.length;
+        for (long xid = horizon; xid < newHorizon; xid++) {
+            if(statusTable.get(xid) == FIELD_TRAN_COMMITTED) {
+                continue;
+            }
+            if(len > 0 && aborted[len - 1] == xid - 1) {
+                aborted[len - 1] = xid;
+                continue;
+            }
+            if(len == aborted.length) {
+                aborted = Arrays.copyOf(aborted, Math.max(16, len * 2));
+            }
+            aborted[len ++] = xid;
+            aborted[len ++] = xid;
+        }
+        aborted = Arrays.copyOf(aborted, len);
+        int count = len / 2;
+
+        fileLock.writeLock().lock();
+        try {
+            File tmp = new File(path + COMPACT_SUFFIX);
+            RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+            FileChannel tfc = raf.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(OF_ABORTED + count * ABORTED_RANGE_SIZE);
+            header.putLong(MAGIC).putLong(xidCounter).putLong(newHorizon).putInt(count);
+            for (long xid : aborted) {
+                header.putLong(xid);
+            }
+            header.flip();
+            while (header.hasRemaining()) {
+                tfc.write(header);
+            }
+            long from = getXidPosition(newHorizon), to = getXidPosition(xidCounter + 1);
+            while (from < to) {
+                from += fc.transferTo(from, to - from, tfc);
+            }
+            tfc.force(true);
+            Files.move(tmp.toPath(), new File(path + XID_SUFFIX).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            fc.close();
+            file.close();
+            file = raf;
+            fc = tfc;
+            counterOffset = OF_FROZEN_COUNTER;
+            statusOffset = OF_ABORTED + (long) count * ABORTED_RANGE_SIZE;
+            // 先发布 aborted 集合再推进水位，读者看到新水位时一定能看到对应的 aborted 集合
+            frozenAborted = aborted;
+            horizon = newHorizon;
+            // 新文件已包含之前所有的写入并已落盘
+            syncedSeq = Math.max(syncedSeq, writeSeq.get());
+        } catch (IOException e) {
             Panic.panic(e);
+        } finally {
+            fileLock.writeLock().unlock();
         }
+        statusTable.truncate(newHorizon);
     }
 
-    // 更新 xid 事务的状态为 status
-    private void updateXID(long xid, byte status) {
-        long offset = getXidPosition(xid);
+    // 将 xid 事务的状态 status 写入文件，不落盘
+    private void writeXID(long xid, byte status) {
         byte[] tmp = new byte[XID_FIELD_SIZE];
         tmp[0] = status;
         ByteBuffer buf = ByteBuffer.wrap(tmp);
+        fileLock.readLock().lock();
         try {
-            fc.position(offset);
-            fc.write(buf);
+            fc.write(buf, getXidPosition(xid));
         } catch (IOException e) {
             Panic.panic(e);
+        } finally {
+            fileLock.readLock().unlock();
+        }
+    }
+
+    // 更新 xid 事务的状态为 status，落盘后再更新内存
+    private void updateXID(long xid, byte status) {
+        if(xid > xidCounter) {
+            // 只在恢复旧版本的文件时出现：事务的日志已落盘，但它的 begin 因崩溃丢失了
+            reserveXID(xid);
+            lastXid.accumulateAndGet(xid, Math::max);
+        }
+        writeXID(xid, status);
+        sync(writeSeq.incrementAndGet());
+        statusTable.set(xid, status);
+    }
+
+    // 等待序号 seq 之前的写入全部落盘，并发的调用者共享同一次 force
+    private void sync(long seq) {
+        if(syncedSeq >= seq) {
+            return;
         }
+        syncLock.lock();
+        fileLock.readLock().lock();
         try {
+            if(syncedSeq >= seq) {
+                return;
+            }
+            long target = writeSeq.get();
+            // 将数据刷到磁盘，但不包括元数据
             fc.force(false);
+            syncedSeq = target;
         } catch (IOException e) {
             Panic.panic(e);
+        } finally {
+            fileLock.readLock().unlock();
+            syncLock.unlock();
         }
     }
 
-    // 开始一个事务，并返回 XID
+    // 开始一个事务，并返回 XID，预留区间内的状态已经是 active
     @Override
     public long begin() {
-        counterLock.lock();
-        try{
-            long xid = xidCounter + 1;
-            updateXID(xid, FIELD_TRAN_ACTIVE);
-            IncreaseXIDCounter();
-            return xid;
-        }finally {
-            counterLock.unlock();
+        long xid = lastXid.incrementAndGet();
+        if(xid > xidCounter) {
+            reserveXID(xid);
+            freeze();
         }
+        return xid;
     }
 
-    // 提交 XID 事务
+    // 提交 XID 事务，返回时状态已落盘
     @Override
     public void commit(long xid) {
         updateXID(xid, FIELD_TRAN_COMMITTED);
     }
 
-    // 回滚 XID 事务
+    // 回滚 XID 事务，返回时状态已落盘
     @Override
     public void abort(long xid) {
         updateXID(xid, FIELD_TRAN_ABORTED);
     }
 
+    // 取得 xid 事务的状态，只查内存
+    private byte getStatus(long xid) {
+        if(xid >= horizon) {
+            byte status = statusTable.get(xid);
+            if(status != XidStatusTable.FROZEN) {
+                return status;
+            }
+        }
+        return isFrozenAborted(xid) ? FIELD_TRAN_ABORTED : FIELD_TRAN_COMMITTED;
+    }
+
+    // 在冻结的区间中二分查找 From 不大于 xid 的最后一个区间
+    private boolean isFrozenAborted(long xid) {
+        long[] aborted = frozenAborted;
+        int lo = 0, hi = aborted.length / 2 - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if(aborted[2 * mid] > xid) {
+                hi = mid - 1;
+            } else if(aborted[2 * mid + 1] < xid) {
+                lo = mid + 1;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+
     // 检查 XID 事务是否处于 status 状态
     private boolean checkXID(long xid, byte status){
-        long offset = getXidPosition(xid);
-        ByteBuffer buf = ByteBuffer.wrap(new byte[XID_FIELD_SIZE]);
-        try {
-            fc.position(offset);
-            fc.read(buf);
-        } catch (IOException e) {
-            Panic.panic(e);
-        }
-        return buf.array()[0] == status;
+        return getStatus(xid) == status;
     }
 
     @Override
@@ -176,11 +481,15 @@ public class TransactionManagerImpl implements TransactionManager {
 
     @Override
     public void close() {
+        fileLock.writeLock().lock();
         try {
+            fc.force(false);
             fc.close();
             file.close();
         } catch (IOException e) {
             Panic.panic(e);
+        } finally {
+            fileLock.writeLock().unlock();
         }
     }
 }
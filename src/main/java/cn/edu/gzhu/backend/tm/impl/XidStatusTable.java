@@ -0,0 +1,110 @@
+package cn.edu.gzhu.backend.tm.impl;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 内存中的事务状态表
+ * 每个事务的状态占 2 位，一个 long 存 32 个事务，按 CHUNK_XIDS 个事务一块按需分配。
+ * 状态的取值与 XID 文件中的字节相同，未分配的 xid 读出为 0（active），与读 XID 文件末尾之外得到的结果一致。
+ * 冻结水位以下的块整块丢弃，读到已丢弃的块返回 FROZEN，由调用者按冻结的状态处理。
+ *
+ * 读不加锁：块数组是 volatile 的，块内用 AtomicLongArray 保证写入的状态立即对其他线程可见；
+ * 写只有扩容时加锁，同一个 long 上的并发修改用 CAS 重试。
+ */
+class XidStatusTable {
+    private static final int BITS = 2;
+    private static final long MASK = (1L << BITS) - 1;
+    private static final int XIDS_PER_LONG_SHIFT = 5;
+    // 每块 4096 个 long，即 131072 个事务，32KB
+    private static final int CHUNK_LONGS_SHIFT = 12;
+    private static final int CHUNK_LONGS = 1 << CHUNK_LONGS_SHIFT;
+    static final int CHUNK_XIDS = CHUNK_LONGS << XIDS_PER_LONG_SHIFT;
+
+    static final byte FROZEN = -1;
+
+    private volatile AtomicLongArray[] chunks;
+    // 第一个未丢弃的块，之前的块为 null
+    private int firstChunk;
+    private Lock growLock;
+
+    XidStatusTable() {
+        this.chunks = new AtomicLongArray[0];
+        this.growLock = new ReentrantLock();
+    }
+
+    byte get(long xid) {
+        AtomicLongArray[] cs = chunks;
+        long word = xid >>> XIDS_PER_LONG_SHIFT;
+        int chunk = (int) (word >>> CHUNK_LONGS_SHIFT);
+        if(chunk >= cs.length) {
+            return 0;
+        }
+        AtomicLongArray c = cs[chunk];
+        if(c == null) {
+            return FROZEN;
+        }
+        long bits = c.get((int) (word & (CHUNK_LONGS - 1)));
+        return (byte) ((bits >>> shift(xid)) & MASK);
+    }
+
+    void set(long xid, byte status) {
+        long word = xid >>> XIDS_PER_LONG_SHIFT;
+        AtomicLongArray c = chunk((int) (word >>> CHUNK_LONGS_SHIFT));
+        int i = (int) (word & (CHUNK_LONGS - 1));
+        int shift = shift(xid);
+        while (true) {
+            long old = c.get(i);
+            long bits = (old & ~(MASK << shift)) | ((status & MASK) << shift);
+            if(c.compareAndSet(i, old, bits)) {
+                return;
+            }
+        }
+    }
+
+    private static int shift(long xid) {
+        return (int) (xid & ((1 << XIDS_PER_LONG_SHIFT) - 1)) * BITS;
+    }
+
+    // 取得第 index 块，不存在时扩容
+    private AtomicLongArray chunk(int index) {
+        AtomicLongArray[] cs = chunks;
+        if(index < cs.length) {
+            return cs[index];
+        }
+        growLock.lock();
+        try {
+            cs = chunks;
+            if(index >= cs.length) {
+                AtomicLongArray[] grown = new AtomicLongArray[Math.max(index + 1, cs.length * 2)];
+                System.arraycopy(cs, 0, grown, 0, cs.length);
+                for (int k = Math.max(cs.length, firstChunk); k < grown.length; k++) {
+                    grown[k] = new AtomicLongArray(CHUNK_LONGS);
+                }
+                chunks = grown;
+                cs = grown;
+            }
+            return cs[index];
+        } finally {
+            growLock.unlock();
+        }
+    }
+
+    /**
+     * 丢弃完全位于 xid 之前的块，之后不会再写入这些 xid
+     */
+    void truncate(long xid) {
+        int index = (int) (xid >>> XIDS_PER_LONG_SHIFT >>> CHUNK_LONGS_SHIFT);
+        growLock.lock();
+        try {
+            AtomicLongArray[] cs = chunks;
+            for (int k = firstChunk; k < Math.min(index, cs.length); k++) {
+                cs[k] = null;
+            }
+            firstChunk = Math.max(firstChunk, index);
+        } finally {
+            growLock.unlock();
+        }
+    }
+}
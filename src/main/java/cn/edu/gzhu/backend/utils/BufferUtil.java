@@ -0,0 +1,59 @@
+package cn.edu.gzhu.backend.utils;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 按绝对位置读写 ByteBuffer
+ * 页帧被多个线程共享，只能按绝对位置访问，不能改动缓冲区自身的 position 和 limit。
+ * Java 8 没有按绝对位置的批量读写，批量操作都在 duplicate 上进行。
+ */
+public class BufferUtil {
+    public static void get(ByteBuffer buf, int index, byte[] dst, int off, int len) {
+        ByteBuffer view = buf.duplicate();
+        view.position(index);
+        view.get(dst, off, len);
+    }
+
+    public static void get(ByteBuffer buf, int index, byte[] dst) {
+        get(buf, index, dst, 0, dst.length);
+    }
+
+    public static byte[] copyOfRange(ByteBuffer buf, int from, int to) {
+        byte[] dst = new byte[to - from];
+        get(buf, from, dst);
+        return dst;
+    }
+
+    public static void put(ByteBuffer buf, int index, byte[] src, int off, int len) {
+        ByteBuffer view = buf.duplicate();
+        view.position(index);
+        view.put(src, off, len);
+    }
+
+    public static void put(ByteBuffer buf, int index, byte[] src) {
+        put(buf, index, src, 0, src.length);
+    }
+
+    // 将 src 中 [srcIndex, srcIndex + len) 拷贝到 dst 的 dstIndex 处，两者不能是同一块内存中重叠的区域
+    public static void copy(ByteBuffer src, int srcIndex, ByteBuffer dst, int dstIndex, int len) {
+        ByteBuffer from = src.duplicate();
+        from.limit(srcIndex + len);
+        from.position(srcIndex);
+        ByteBuffer to = dst.duplicate();
+        to.position(dstIndex);
+        to.put(from);
+    }
+
+    // 在 buf 内移动一段字节，源和目标可以重叠
+    public static void move(ByteBuffer buf, int src, int dst, int len) {
+        byte[] tmp = new byte[len];
+        get(buf, src, tmp);
+        put(buf, dst, tmp);
+    }
+
+    public static void fill(ByteBuffer buf, int from, int to, byte value) {
+        for (int i = from; i < to; i++) {
+            buf.put(i, value);
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package cn.edu.gzhu.backend.vm;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 提交序号（Commit Sequence Number）表
+ * 每次提交分配一个递增的 CSN，快照就是开始时最新的 CSN，O(1) 取得：
+ * 一个事务的提交对快照可见，当且仅当它的 CSN 不大于快照。
+ *
+ * 提交时先标记为 PENDING，TM 中的状态变为 committed 后再分配 CSN，
+ * 所以看到 committed 的读者一定能在这里看到 PENDING 或 CSN，PENDING 对所有快照都不可见。
+ * 表中没有的 xid（本次启动之前提交的，或已被 prune 丢弃的）CSN 视为 0，对所有快照可见。
+ *
+ * 按 xid 每 CHUNK_XIDS 个一块，只保存最早的活跃事务之后的块；
+ * 一块中所有的提交都对仍活跃的所有快照可见后，整块丢弃。读不加锁。
+ */
+public class CsnTable {
+    public static final long PENDING = Long.MAX_VALUE;
+
+    private static final int CHUNK_SHIFT = 12;
+    private static final int CHUNK_XIDS = 1 << CHUNK_SHIFT;
+
+    static class Chunk {
+        AtomicLongArray csns = new AtomicLongArray(CHUNK_XIDS);
+        // 块中最大的 CSN
+        volatile long maxCsn;
+    }
+
+    // chunks[i] 对应第 base + i 块，替换时整体发布
+    static class Chunks {
+        final long base;
+        final Chunk[] chunks;
+
+        Chunks(long base, Chunk[] chunks) {
+            this.base = base;
+            this.chunks = chunks;
+        }
+    }
+
+    private volatile Chunks table;
+    // 已发布的最新 CSN，写入表之后才推进
+    private volatile long csn;
+    private Lock lock;
+
+    public CsnTable() {
+        this.table = new Chunks(0, new Chunk[0]);
+        this.lock = new ReentrantLock();
+    }
+
+    /**
+     * 取得快照
+     */
+    public long snapshot() {
+        return csn;
+    }
+
+    /**
+     * 在 TM 提交 xid 之前调用
+     */
+    public void pending(long xid) {
+        lock.lock();
+        try {
+            chunk(xid).csns.set(index(xid), PENDING);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 在 TM 提交 xid 之后调用，为其分配 CSN
+     */
+    public void commit(long xid) {
+        lock.lock();
+        try {
+            long c = csn + 1;
+            Chunk chunk = chunk(xid);
+            chunk.csns.set(index(xid), c);
+            chunk.maxCsn = c;
+            csn = c;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 已提交的 xid 的提交对快照 snapshot 不可见
+     */
+    public boolean isCommittedAfter(long xid, long snapshot) {
+        Chunks t = table;
+        long i = (xid >>> CHUNK_SHIFT) - t.base;
+        if(i < 0 || i >= t.chunks.length || t.chunks[(int) i] == null) {
+            return false;
+        }
+        return t.chunks[(int) i].csns.get(index(xid)) > snapshot;
+    }
+
+    /**
+     * 丢弃开头完全位于 minXid 之前、且所有提交都不晚于 minSnapshot 的块
+     * minXid 为最早的活跃事务，minSnapshot 为活跃事务中最早的快照
+     */
+    public void prune(long minXid, long minSnapshot) {
+        lock.lock();
+        try {
+            Chunks t = table;
+            int drop = 0;
+            while (drop < t.chunks.length && (t.base + drop + 1) << CHUNK_SHIFT <= minXid) {
+                Chunk c = t.chunks[drop];
+                if(c != null && c.maxCsn > minSnapshot) {
+                    break;
+                }
+                drop ++;
+            }
+            if(drop > 0) {
+                Chunk[] rest = new Chunk[t.chunks.length - drop];
+                System.arraycopy(t.chunks, drop, rest, 0, rest.length);
+                table = new Chunks(t.base + drop, rest);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static int index(long xid) {
+        return (int) (xid & (CHUNK_XIDS - 1));
+    }
+
+    // 取得 xid 所在的块，不存在时扩展，需持有 lock
+    private Chunk chunk(long xid) {
+        long n = xid >>> CHUNK_SHIFT;
+        Chunks t = table;
+        if(t.chunks.length == 0) {
+            t = new Chunks(n, new Chunk[0]);
+        }
+        long base = Math.min(t.base, n);
+        long end = Math.max(t.base + t.chunks.length, n + 1);
+        if(base != t.base || end != t.base + t.chunks.length) {
+            Chunk[] grown = new Chunk[(int) (end - base)];
+            System.arraycopy(t.chunks, 0, grown, (int) (t.base - base), t.chunks.length);
+            t = new Chunks(base, grown);
+            table = t;
+        }
+        int i = (int) (n - t.base);
+        if(t.chunks[i] == null) {
+            t.chunks[i] = new Chunk();
+        }
+        return t.chunks[i];
+    }
+}
@@ -2,12 +2,11 @@ package cn.edu.gzhu.backend.vm;
 
 import cn.edu.gzhu.backend.common.SubArray;
 import cn.edu.gzhu.backend.dm.dataItem.DataItem;
+import cn.edu.gzhu.backend.utils.BufferUtil;
 import cn.edu.gzhu.backend.utils.Parser;
 import cn.edu.gzhu.backend.vm.impl.VersionManagerImpl;
 import com.google.common.primitives.Bytes;
 
-import java.util.Arrays;
-
 /**
  * VM 想上层抽象出 Entry
  * Entry 结构： [XMIN] [XMAX] [DATA]
@@ -56,7 +55,7 @@ public class Entry {
         try {
             SubArray subArray = dataItem.data();
             byte[] data = new byte[subArray.end - subArray.start - OF_DATA];
-            System.arraycopy(subArray.raw, subArray.start + OF_DATA, data, 0, data.length);
+            BufferUtil.get(subArray.raw, subArray.start + OF_DATA, data);
             return data;
         } finally {
             dataItem.rUnLock();
@@ -67,7 +66,7 @@ public class Entry {
         dataItem.rLock();
         try {
             SubArray subArray = dataItem.data();
-            return Parser.parseLong(Arrays.copyOfRange(subArray.raw, subArray.start + OF_XMIN, subArray.start + OF_XMAX));
+            return subArray.raw.getLong(subArray.start + OF_XMIN);
         } finally {
             dataItem.rUnLock();
         }
@@ -77,7 +76,7 @@ public class Entry {
         dataItem.rLock();
         try {
             SubArray subArray = dataItem.data();
-            return Parser.parseLong(Arrays.copyOfRange(subArray.raw, subArray.start + OF_XMAX, subArray.start + OF_DATA));
+            return subArray.raw.getLong(subArray.start + OF_XMAX);
         } finally {
             dataItem.rUnLock();
         }
@@ -87,7 +86,7 @@ public class Entry {
         dataItem.before();
         try {
             SubArray subArray = dataItem.data();
-            System.arraycopy(Parser.long2Byte(xid), 0, subArray.raw, subArray.start + OF_XMAX, 8);
+            subArray.raw.putLong(subArray.start + OF_XMAX, xid);
         } finally {
             dataItem.after(xid);
         }
@@ -2,9 +2,6 @@ package cn.edu.gzhu.backend.vm;
 
 import cn.edu.gzhu.backend.tm.impl.TransactionManagerImpl;
 
-import java.util.HashMap;
-import java.util.Map;
-
 // vm 对一个事务的抽象
 
 /**
@@ -15,31 +12,34 @@ import java.util.Map;
  *  2. 本事务开始时还是 active 状态的事务的数据
  * 对于第一条，只需要比较事务 ID，即可确定。
  * 而对于第二条，则需要在事务 Ti 开始时，记录下当前或缺的所有事务 SP(Ti), 如果记录的某个版本，XMIN 在 SP[Ti]中，也应当对 Ti 不可见。
+ *
+ * SP(Ti) 不再逐个复制活跃事务，而是记录开始时的提交序号 snapshot（见 CsnTable）：
+ * 一个已提交的事务属于 SP(Ti)，当且仅当它的提交序号大于 snapshot，即在 Ti 开始时还未提交。
  */
 public class Transaction {
     public long xid;
     public int level;
-    public Map<Long, Boolean> snapshot;
+    public long snapshot;
+    public CsnTable csnTable;
     public Exception err;
     public boolean autoAborted;
 
-    public static Transaction newTransaction(long xid, int level, Map<Long, Transaction> active){
+    public static Transaction newTransaction(long xid, int level, CsnTable csnTable){
         Transaction transaction = new Transaction();
         transaction.xid = xid;
         transaction.level = level;
         if(level != 0){
-            transaction.snapshot = new HashMap<>();
-            for (Long x : active.keySet()) {
-                transaction.snapshot.put(x, true);
-            }
+            transaction.csnTable = csnTable;
+            transaction.snapshot = csnTable.snapshot();
         }
         return transaction;
     }
 
+    // 已提交的 xid 在本事务开始时是否还未提交，只对已提交的事务有意义
     public boolean isInSnapshot(long xid){
         if(xid == TransactionManagerImpl.SUPER_XID){
             return false;
         }
-        return snapshot.containsKey(xid);
+        return csnTable.isCommittedAfter(xid, snapshot);
     }
 }
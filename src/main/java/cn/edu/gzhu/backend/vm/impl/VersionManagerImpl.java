@@ -19,6 +19,10 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
     private Map<Long, Transaction> activeTransaction;
     private Lock lock;
     private LockTable lockTable;
+    private CsnTable csnTable;
+    // 每提交这么多个事务，清理一次 csnTable
+    private static final int PRUNE_INTERVAL = 4096;
+    private int commitCount;
 
     public VersionManagerImpl(TransactionManager tm, DataManager dm) {
         super(0);
@@ -28,6 +32,7 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         activeTransaction.put(TransactionManagerImpl.SUPER_XID, Transaction.newTransaction(TransactionManagerImpl.SUPER_XID, 0, null));
         this.lock = new ReentrantLock();
         this.lockTable = new LockTable();
+        this.csnTable = new CsnTable();
     }
 
     /**
@@ -111,7 +116,7 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
             }
         }
         try{
-            if(!Visibility.isVersionSkip(tm, transaction, entry)){
+            if(!Visibility.isVisible(tm, transaction, entry)){
                 return false;
             }
             Lock l = null;
@@ -153,7 +158,7 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         lock.lock();
         try {
             long xid = tm.begin();
-            Transaction transaction = Transaction.newTransaction(xid, level, activeTransaction);
+            Transaction transaction = Transaction.newTransaction(xid, level, csnTable);
             activeTransaction.put(xid, transaction);
             return xid;
         } finally {
@@ -163,6 +168,7 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
 
     /**
      * 提交一个事务，主要就是 free 掉相关的结构，并且释放持有的锁，并修改 TM 状态
+     * 分配提交序号之后才从 activeTransaction 中移除，保证 prune 不会丢弃还没有分配提交序号的 xid
      * @param xid
      * @throws Exception
      */
@@ -180,11 +186,34 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
             System.out.println(activeTransaction.keySet());
             Panic.panic(e);
         }
-        lock.lock();
-        activeTransaction.remove(xid);
-        lock.unlock();
         lockTable.remove(xid);
+        csnTable.pending(xid);
         tm.commit(xid);
+        csnTable.commit(xid);
+        lock.lock();
+        try {
+            activeTransaction.remove(xid);
+            if(++ commitCount % PRUNE_INTERVAL == 0) {
+                pruneCsnTable();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 以最早的活跃事务和最早的快照为界清理 csnTable，需持有 lock
+    private void pruneCsnTable() {
+        long minXid = Long.MAX_VALUE, minSnapshot = Long.MAX_VALUE;
+        for (Transaction t : activeTransaction.values()) {
+            if(t.xid == TransactionManagerImpl.SUPER_XID) {
+                continue;
+            }
+            minXid = Math.min(minXid, t.xid);
+            if(t.level != 0) {
+                minSnapshot = Math.min(minSnapshot, t.snapshot);
+            }
+        }
+        csnTable.prune(minXid, minSnapshot);
     }
 
     /**
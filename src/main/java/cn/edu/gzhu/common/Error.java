@@ -43,4 +43,7 @@ public class Error {
 
     // launcher
     public static final Exception InvalidMemException = new RuntimeException("Invalid memory!");
+    public static final Exception InvalidCachePolicyException = new RuntimeException("Invalid cache policy!");
+    public static final Exception InvalidIOModeException = new RuntimeException("Invalid io mode!");
+    public static final Exception InvalidCommitDelayException = new RuntimeException("Invalid commit delay!");
 }
@@ -1,6 +1,7 @@
 package cn.edu.gzhu.server;
 
 import cn.edu.gzhu.backend.dm.DataManager;
+import cn.edu.gzhu.backend.dm.logger.impl.LoggerImpl;
 import cn.edu.gzhu.backend.tbm.TableManager;
 import cn.edu.gzhu.backend.tm.TransactionManager;
 import cn.edu.gzhu.backend.utils.Panic;
@@ -24,11 +25,15 @@ public class Launcher {
         options.addOption("open", true, "-open DBPath");
         options.addOption("create", true, "-create DBPath");
         options.addOption("mem", true, "-mem 64MB");
+        options.addOption("cache", true, "-cache 2q|clock");
+        options.addOption("io", true, "-io pread|mmap");
+        options.addOption("commitDelay", true, "-commitDelay 200us");
         CommandLineParser parser = new DefaultParser();
         CommandLine cmd = parser.parse(options, args);
 
         if(cmd.hasOption("open")) {
-            openDB(cmd.getOptionValue("open"), parseMem(cmd.getOptionValue("mem")));
+            openDB(cmd.getOptionValue("open"), parseMem(cmd.getOptionValue("mem")), cmd.getOptionValue("cache"), cmd.getOptionValue("io"),
+                    parseDelay(cmd.getOptionValue("commitDelay")));
             return;
         }
         if(cmd.hasOption("create")) {
@@ -40,16 +45,16 @@ public class Launcher {
 
     private static void createDB(String path) {
         TransactionManager tm = TransactionManager.create(path);
-        DataManager dm = DataManager.create(path, DEFAULT_MEM, tm);
+        DataManager dm = DataManager.create(path, DEFAULT_MEM, null, null, LoggerImpl.DEFAULT_GROUP_COMMIT_DELAY, tm);
         VersionManager vm = new VersionManagerImpl(tm, dm);
         TableManager.create(path, vm, dm);
         tm.close();
         dm.close();
     }
 
-    private static void openDB(String path, long mem) {
+    private static void openDB(String path, long mem, String cachePolicy, String ioMode, long commitDelay) {
         TransactionManager tm = TransactionManager.open(path);
-        DataManager dm = DataManager.open(path, mem, tm);
+        DataManager dm = DataManager.open(path, mem, cachePolicy, ioMode, commitDelay, tm);
         VersionManager vm = new VersionManagerImpl(tm, dm);
         TableManager tableManager = TableManager.open(path, vm, dm);
         new Server(port, tableManager).start();
@@ -76,4 +81,33 @@ public class Launcher {
         }
         return DEFAULT_MEM;
     }
+
+    // 组提交的等待时间，返回微秒数
+    private static long parseDelay(String delayStr) {
+        if(delayStr == null || "".equals(delayStr)) {
+            return LoggerImpl.DEFAULT_GROUP_COMMIT_DELAY;
+        }
+        if(delayStr.length() < 3) {
+            Panic.panic(Error.InvalidCommitDelayException);
+        }
+        String unit = delayStr.substring(delayStr.length() - 2);
+        long delayNum = 0;
+        try {
+            delayNum = Long.parseLong(delayStr.substring(0, delayStr.length() - 2));
+        } catch (NumberFormatException e) {
+            Panic.panic(Error.InvalidCommitDelayException);
+        }
+        if(delayNum < 0) {
+            Panic.panic(Error.InvalidCommitDelayException);
+        }
+        switch (unit) {
+            case "us":
+                return delayNum;
+            case "ms":
+                return delayNum * 1000;
+            default:
+                Panic.panic(Error.InvalidCommitDelayException);
+        }
+        return LoggerImpl.DEFAULT_GROUP_COMMIT_DELAY;
+    }
 }
@@ -0,0 +1,154 @@
+package cn.edu.gzhu.backend.common;
+
+import cn.edu.gzhu.backend.common.impl.ClockPolicy;
+import cn.edu.gzhu.backend.common.impl.TwoQueuePolicy;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntFunction;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class EvictionPolicyTest {
+    private static final List<IntFunction<EvictionPolicy>> POLICIES = Arrays.asList(ClockPolicy::new, TwoQueuePolicy::new);
+
+    // 载入后立即释放引用
+    private static void load(EvictionPolicy policy, long key) {
+        policy.access(key);
+        policy.unpin(key);
+    }
+
+    @Test
+    public void testClockGivesSecondChance() {
+        EvictionPolicy clock = new ClockPolicy(3);
+        load(clock, 1);
+        load(clock, 2);
+        load(clock, 3);
+        // 第一圈清掉所有访问位，第二圈选中最早的槽位
+        assertEquals(1, clock.victim());
+        clock.remove(1);
+        load(clock, 4);
+        // 2 再次被访问，指针经过时只清访问位，驱逐的是 3
+        load(clock, 2);
+        assertEquals(3, clock.victim());
+    }
+
+    @Test
+    public void testClockSkipsPinned() {
+        EvictionPolicy clock = new ClockPolicy(2);
+        clock.access(1);
+        clock.access(2);
+        assertEquals(EvictionPolicy.NO_VICTIM, clock.victim());
+        clock.unpin(2);
+        assertEquals(2, clock.victim());
+    }
+
+    @Test
+    public void testClockGrowsPastCapacity() {
+        EvictionPolicy clock = new ClockPolicy(2);
+        clock.access(1);
+        clock.access(2);
+        // 槽位用完后扩大，已有的 key 不受影响
+        load(clock, 3);
+        assertEquals(3, clock.victim());
+        clock.unpin(1);
+        clock.remove(3);
+        assertEquals(1, clock.victim());
+    }
+
+    @Test
+    public void testTwoQueueResistsScan() {
+        // kIn = 2，kOut = 4
+        EvictionPolicy twoQ = new TwoQueuePolicy(8);
+        load(twoQ, 1);
+        twoQ.remove(1);
+        // 在 A1out 中再次访问，进入 Am
+        load(twoQ, 1);
+        for (long key = 10; key < 16; key++) {
+            load(twoQ, key);
+        }
+        // 扫描只在 A1in 中按 FIFO 驱逐，不会挤掉 Am 中的 1
+        List<Long> victims = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            long victim = twoQ.victim();
+            victims.add(victim);
+            twoQ.remove(victim);
+        }
+        assertEquals(Arrays.asList(10L, 11L, 12L, 13L), victims);
+        // A1in 不超过 kIn 后才轮到 Am
+        assertEquals(1, twoQ.victim());
+    }
+
+    @Test
+    public void testTwoQueueSkipsPinned() {
+        EvictionPolicy twoQ = new TwoQueuePolicy(8);
+        twoQ.access(1);
+        twoQ.access(2);
+        assertEquals(EvictionPolicy.NO_VICTIM, twoQ.victim());
+        twoQ.unpin(1);
+        assertEquals(1, twoQ.victim());
+    }
+
+    static class CountingCache extends AbstractCache<Long> {
+        List<Long> loaded = new ArrayList<>();
+        List<Long> evicted = new ArrayList<>();
+
+        CountingCache(int maxResource, IntFunction<EvictionPolicy> policies) {
+            super(maxResource, policies);
+        }
+
+        @Override
+        protected Long getForCache(long key) {
+            loaded.add(key);
+            return key;
+        }
+
+        @Override
+        protected void releaseForCache(Long obj) {
+            evicted.add(obj);
+        }
+    }
+
+    @Test
+    public void testCacheKeepsReleasedEntriesUntilFull() throws Exception {
+        for (IntFunction<EvictionPolicy> policy : POLICIES) {
+            CountingCache cache = new CountingCache(2, policy);
+            cache.get(1);
+            cache.release(1);
+            cache.get(2);
+            cache.release(2);
+            // 引用归零后仍然驻留，再次 get 不重新载入
+            cache.get(1);
+            cache.release(1);
+            assertEquals(Arrays.asList(1L, 2L), cache.loaded);
+            assertTrue(cache.evicted.isEmpty());
+            // 缓存已满，载入 3 时由策略驱逐一个未被引用的资源
+            cache.get(3);
+            assertEquals(1, cache.evicted.size());
+            cache.release(3);
+        }
+    }
+
+    @Test
+    public void testCacheEvictsFromOtherSegments() throws Exception {
+        for (IntFunction<EvictionPolicy> policy : POLICIES) {
+            // 缓存满时，无论新 key 落在哪个段，都能驱逐其他段中未被引用的资源
+            CountingCache cache = new CountingCache(4, policy);
+            for (long key = 0; key < 4; key++) {
+                cache.get(key);
+            }
+            cache.release(2);
+            for (long key = 100; key < 164; key++) {
+                cache.get(key);
+                cache.release(key);
+            }
+            assertEquals(64, cache.evicted.size());
+            assertTrue(cache.evicted.contains(2L));
+            // 被引用的资源从未被驱逐
+            assertTrue(!cache.evicted.contains(0L) && !cache.evicted.contains(1L) && !cache.evicted.contains(3L));
+        }
+    }
+}
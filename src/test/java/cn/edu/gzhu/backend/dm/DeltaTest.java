@@ -0,0 +1,124 @@
+package cn.edu.gzhu.backend.dm;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DeltaTest {
+    private Random random = new Random(1);
+
+    // 增量作用在 DataItem 所在页的中间，检查不会越出 DataItem
+    private static byte[] redo(byte[] oldRaw, byte[] delta) {
+        int base = 100;
+        byte[] page = new byte[base + oldRaw.length + 100];
+        Arrays.fill(page, (byte) 0x5A);
+        System.arraycopy(oldRaw, 0, page, base, oldRaw.length);
+        Delta.redo(ByteBuffer.wrap(page), base, delta);
+        for (int i = 0; i < base; i++) {
+            assertEquals(0x5A, page[i]);
+            assertEquals(0x5A, page[page.length - 1 - i]);
+        }
+        return Arrays.copyOfRange(page, base, base + oldRaw.length);
+    }
+
+    private void assertRoundTrip(byte[] oldRaw, byte[] newRaw) {
+        assertArrayEquals(newRaw, redo(oldRaw, Delta.encode(oldRaw, newRaw)));
+    }
+
+    private byte[] randomBytes(int n) {
+        byte[] raw = new byte[n];
+        random.nextBytes(raw);
+        return raw;
+    }
+
+    @Test
+    public void testNoChange() {
+        byte[] raw = randomBytes(200);
+        assertEquals(0, Delta.encode(raw, raw.clone()).length);
+    }
+
+    @Test
+    public void testInsertShiftsTailWithMove() {
+        // 类似 B+ 树节点在中间插入一对 son/key：之后的部分整体后移 16 字节
+        byte[] oldRaw = randomBytes(1000);
+        byte[] newRaw = oldRaw.clone();
+        System.arraycopy(oldRaw, 300, newRaw, 316, 600);
+        System.arraycopy(randomBytes(16), 0, newRaw, 300, 16);
+        newRaw[2] ++;
+        byte[] delta = Delta.encode(oldRaw, newRaw);
+        assertEquals(Delta.OP_MOVE, delta[0]);
+        assertTrue(delta.length < 64);
+        assertRoundTrip(oldRaw, newRaw);
+    }
+
+    @Test
+    public void testDeleteShiftsTailBack() {
+        byte[] oldRaw = randomBytes(1000);
+        byte[] newRaw = oldRaw.clone();
+        System.arraycopy(oldRaw, 316, newRaw, 300, 684);
+        assertEquals(Delta.OP_MOVE, Delta.encode(oldRaw, newRaw)[0]);
+        assertRoundTrip(oldRaw, newRaw);
+    }
+
+    @Test
+    public void testRandomEdits() {
+        for (int round = 0; round < 2000; round++) {
+            byte[] oldRaw = randomBytes(1 + random.nextInt(600));
+            byte[] newRaw = oldRaw.clone();
+            int edits = random.nextInt(4);
+            for (int i = 0; i < edits; i++) {
+                int from = random.nextInt(newRaw.length);
+                int to = random.nextInt(newRaw.length);
+                int len = random.nextInt(newRaw.length - Math.max(from, to) + 1);
+                if(random.nextBoolean()) {
+                    System.arraycopy(newRaw, from, newRaw, to, len);
+                } else {
+                    System.arraycopy(randomBytes(len), 0, newRaw, to, len);
+                }
+            }
+            assertRoundTrip(oldRaw, newRaw);
+        }
+    }
+
+    @Test
+    public void testRangesRedoAndUndo() {
+        for (int round = 0; round < 2000; round++) {
+            byte[] oldRaw = randomBytes(1 + random.nextInt(300));
+            byte[] newRaw = oldRaw.clone();
+            int edits = random.nextInt(5);
+            for (int i = 0; i < edits; i++) {
+                int off = random.nextInt(newRaw.length);
+                int len = 1 + random.nextInt(Math.min(12, newRaw.length - off));
+                System.arraycopy(randomBytes(len), 0, newRaw, off, len);
+            }
+            byte[] ranges = Delta.encodeRanges(oldRaw, newRaw);
+            byte[] page = oldRaw.clone();
+            Delta.applyRanges(ByteBuffer.wrap(page), 0, ranges, true);
+            assertArrayEquals(newRaw, page);
+            // 重复 redo 结果不变
+            Delta.applyRanges(ByteBuffer.wrap(page), 0, ranges, true);
+            assertArrayEquals(newRaw, page);
+            Delta.applyRanges(ByteBuffer.wrap(page), 0, ranges, false);
+            assertArrayEquals(oldRaw, page);
+        }
+    }
+
+    @Test
+    public void testRangesOnlyHoldChangedBytes() {
+        // xmax 0x0100 -> 0x0101 只记录最低字节：[Off] [Len] [Old] [New]
+        byte[] oldRaw = ByteBuffer.allocate(16).putLong(8, 0x0100).array();
+        byte[] newRaw = ByteBuffer.allocate(16).putLong(8, 0x0101).array();
+        byte[] ranges = Delta.encodeRanges(oldRaw, newRaw);
+        assertArrayEquals(new byte[]{0, 15, 0, 1, 0, 1}, ranges);
+        // 所以它依赖更新前的内容，跳过之前的日志会得到错误的值
+        byte[] stale = new byte[16];
+        Delta.applyRanges(ByteBuffer.wrap(stale), 0, ranges, true);
+        assertEquals(1, ByteBuffer.wrap(stale).getLong(8));
+    }
+}
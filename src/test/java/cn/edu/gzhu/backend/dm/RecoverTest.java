@@ -0,0 +1,301 @@
+package cn.edu.gzhu.backend.dm;
+
+import cn.edu.gzhu.backend.common.SubArray;
+import cn.edu.gzhu.backend.dm.dataItem.DataItem;
+import cn.edu.gzhu.backend.dm.logger.Logger;
+import cn.edu.gzhu.backend.dm.logger.impl.LoggerImpl;
+import cn.edu.gzhu.backend.dm.page.Page;
+import cn.edu.gzhu.backend.dm.page.PageCache;
+import cn.edu.gzhu.backend.dm.page.PageX;
+import cn.edu.gzhu.backend.dm.page.impl.PageCacheImpl;
+import cn.edu.gzhu.backend.dm.page.PageFile;
+import cn.edu.gzhu.backend.tm.TransactionManager;
+import cn.edu.gzhu.backend.tm.impl.TransactionManagerImpl;
+import cn.edu.gzhu.backend.utils.BufferUtil;
+import cn.edu.gzhu.backend.utils.Parser;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 崩溃恢复：不关闭 DM，丢弃缓存中的脏页，再重新打开
+ */
+public class RecoverTest {
+    private static final long MEM = 1 << 20;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private String path;
+    private String ioMode;
+    private TransactionManager tm;
+    private DataManagerImpl dm;
+
+    private void create() throws Exception {
+        path = folder.getRoot().getAbsolutePath() + "/db";
+        tm = TransactionManager.create(path);
+        dm = (DataManagerImpl) DataManager.create(path, MEM, null, ioMode, LoggerImpl.DEFAULT_GROUP_COMMIT_DELAY, tm);
+    }
+
+    // 模拟崩溃：停掉检查点，日志已经落盘，缓存中的页全部丢弃
+    private void crashAndReopen() {
+        dm.checkpointer.stop();
+        dm.logger.close();
+        tm = TransactionManager.open(path);
+        dm = (DataManagerImpl) DataManager.open(path, MEM, null, ioMode, LoggerImpl.DEFAULT_GROUP_COMMIT_DELAY, tm);
+    }
+
+    private long insert(long xid, long value) throws Exception {
+        return dm.insert(xid, Parser.long2Byte(value));
+    }
+
+    private void update(long xid, long uid, long value) throws Exception {
+        DataItem item = dm.read(uid);
+        item.before();
+        SubArray data = item.data();
+        data.raw.putLong(data.start, value);
+        item.after(xid);
+        item.release();
+    }
+
+    private long read(long uid) throws Exception {
+        DataItem item = dm.read(uid);
+        SubArray data = item.data();
+        long value = data.raw.getLong(data.start);
+        item.release();
+        return value;
+    }
+
+    @Test
+    public void testRedoAbortedUpdateBeforeCommittedUpdate() throws Exception {
+        create();
+        long t0 = tm.begin();
+        long uid = insert(t0, 0);
+        tm.commit(t0);
+
+        // 改动段日志只记录改动的字节：t2 只记录了最低字节 0x00 -> 0x01，依赖 t1 写入的 0x01
+        long t1 = tm.begin();
+        update(t1, uid, 0x0100);
+        tm.abort(t1);
+        long t2 = tm.begin();
+        update(t2, uid, 0x0101);
+        tm.commit(t2);
+
+        crashAndReopen();
+        assertEquals(0x0101, read(uid));
+        dm.close();
+        tm.close();
+    }
+
+    @Test
+    public void testRedoAndUndoAcrossFuzzyCheckpoint() throws Exception {
+        create();
+        long t0 = tm.begin();
+        long a = insert(t0, 1);
+        tm.commit(t0);
+
+        // t1 在检查点之前修改了 a，崩溃时仍未结束
+        long t1 = tm.begin();
+        update(t1, a, 2);
+        // 第一次检查点只记下脏页表，第二次写回 recLsn 早于上一次检查点的页：
+        // 磁盘上的页含有 t1 未提交的修改，t1 的日志在检查点之前，只能通过活跃事务表找到
+        dm.checkpointer.checkpoint(false);
+        dm.checkpointer.checkpoint(false);
+
+        long t2 = tm.begin();
+        long c = insert(t2, 3);
+        tm.commit(t2);
+        long b = insert(t1, 4);
+
+        crashAndReopen();
+        assertEquals(1, read(a));
+        assertEquals(3, read(c));
+        assertNull(dm.read(b));
+        assertTrue(tm.isAborted(t1));
+        dm.close();
+        tm.close();
+    }
+
+    // 像 B+ 树节点插入一样，SUPER_XID 把后半部分后移一段再写入新的一段
+    private void checkShiftedNodeUpdates(String ioMode) throws Exception {
+        this.ioMode = ioMode;
+        create();
+        long xid = TransactionManagerImpl.SUPER_XID;
+        Random random = new Random(1);
+        byte[] node = new byte[1000];
+        long uid = dm.insert(xid, node);
+        for (int i = 0; i < 20; i++) {
+            byte[] next = node.clone();
+            System.arraycopy(node, 16 * i, next, 16 * i + 16, node.length - 16 * i - 16);
+            byte[] pair = new byte[16];
+            random.nextBytes(pair);
+            System.arraycopy(pair, 0, next, 16 * i, 16);
+            DataItem item = dm.read(uid);
+            item.before();
+            SubArray data = item.data();
+            BufferUtil.put(data.raw, data.start, next);
+            item.after(xid);
+            item.release();
+            node = next;
+        }
+
+        crashAndReopen();
+        DataItem item = dm.read(uid);
+        SubArray data = item.data();
+        assertArrayEquals(node, BufferUtil.copyOfRange(data.raw, data.start, data.end));
+        item.release();
+        dm.close();
+        tm.close();
+    }
+
+    @Test
+    public void testRedoNodeDeltas() throws Exception {
+        checkShiftedNodeUpdates(PageFile.IO_PREAD);
+    }
+
+    @Test
+    public void testRedoNodeRangesWithoutAtomicPageWrite() throws Exception {
+        checkShiftedNodeUpdates(PageFile.IO_MMAP);
+    }
+
+    @Test
+    public void testRedoTornPageWithoutAtomicPageWrite() throws Exception {
+        ioMode = PageFile.IO_MMAP;
+        create();
+        long t0 = tm.begin();
+        long uid = insert(t0, 1);
+        tm.commit(t0);
+        dm.checkpointer.checkpoint(true);
+
+        long t1 = tm.begin();
+        update(t1, uid, 2);
+        tm.commit(t1);
+
+        // 模拟页只落盘了后半部分：磁盘上的 PageLSN 已经是更新之后的，记录所在的前半页还是旧的
+        dm.checkpointer.stop();
+        int pageNum = (int) (uid >>> 32);
+        Page page = dm.pc.getPage(pageNum);
+        byte[] tail = BufferUtil.copyOfRange(page.getData(), PageCache.PAGE_SIZE / 2, PageCache.PAGE_SIZE);
+        page.release();
+        try (RandomAccessFile raf = new RandomAccessFile(path + PageCacheImpl.DB_SUFFIX, "rw")) {
+            raf.seek(PageFile.pageOffset(pageNum) + PageCache.PAGE_SIZE / 2);
+            raf.write(tail);
+        }
+
+        crashAndReopen();
+        assertEquals(2, read(uid));
+        dm.close();
+        tm.close();
+    }
+
+    // 记下检查点写入控制文件的恢复起点
+    private static class RecordingLogger implements Logger {
+        private Logger logger;
+        private List<Long> checkpoints = new CopyOnWriteArrayList<>();
+
+        RecordingLogger(Logger logger) {
+            this.logger = logger;
+        }
+
+        @Override
+        public long log(byte[] data) {
+            return logger.log(data);
+        }
+
+        @Override
+        public long lsn() {
+            return logger.lsn();
+        }
+
+        @Override
+        public void setCheckpoint(long lsn) {
+            checkpoints.add(lsn);
+            logger.setCheckpoint(lsn);
+        }
+
+        @Override
+        public void truncate(long x) throws Exception {
+            logger.truncate(x);
+        }
+
+        @Override
+        public byte[] next() {
+            return logger.next();
+        }
+
+        @Override
+        public ByteBuffer nextView() {
+            return logger.nextView();
+        }
+
+        @Override
+        public long lastLsn() {
+            return logger.lastLsn();
+        }
+
+        @Override
+        public void rewind() {
+            logger.rewind();
+        }
+
+        @Override
+        public void close() {
+            logger.close();
+        }
+    }
+
+    @Test
+    public void testNewPagesDuringCheckpoint() throws Exception {
+        create();
+        dm.checkpointer.stop();
+        RecordingLogger logger = new RecordingLogger(dm.logger);
+        dm.logger = logger;
+        dm.checkpointer = new Checkpointer(dm);
+        dm.checkpointer.start();
+
+        // 每条记录占满一页，每次插入都先分配一个新页
+        int size = PageX.MAX_FREE_SPACE - DataItem.wrapDataItemRaw(new byte[0]).length;
+        long xid = TransactionManagerImpl.SUPER_XID;
+        AtomicBoolean done = new AtomicBoolean();
+        Thread checkpoints = new Thread(() -> {
+            while (!done.get()) {
+                dm.checkpointer.checkpoint(false);
+            }
+        });
+        checkpoints.start();
+        long[] uids = new long[500];
+        for (int i = 0; i < uids.length; i++) {
+            byte[] data = new byte[size];
+            data[0] = (byte) i;
+            uids[i] = dm.insert(xid, data);
+        }
+        done.set(true);
+        checkpoints.join();
+
+        // 新页在写入日志之前没有 recLsn，恢复起点不能因此退回到 0
+        assertTrue(logger.checkpoints.size() > 0);
+        for (long start : logger.checkpoints) {
+            assertTrue(start >= LoggerImpl.FIRST_LSN);
+        }
+        crashAndReopen();
+        for (int i = 0; i < uids.length; i++) {
+            DataItem item = dm.read(uids[i]);
+            assertEquals((byte) i, item.data().raw.get(item.data().start));
+            item.release();
+        }
+        dm.close();
+        tm.close();
+    }
+}
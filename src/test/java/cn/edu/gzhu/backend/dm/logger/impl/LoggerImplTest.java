@@ -0,0 +1,340 @@
+package cn.edu.gzhu.backend.dm.logger.impl;
+
+import cn.edu.gzhu.backend.dm.logger.Logger;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LoggerImplTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private String path;
+    private Random random = new Random(1);
+
+    @Before
+    public void setUp() {
+        path = folder.getRoot().getAbsolutePath() + "/db";
+    }
+
+    // 随机内容不可压缩，日志按原样写入
+    private byte[] record(int size) {
+        byte[] data = new byte[size];
+        random.nextBytes(data);
+        return data;
+    }
+
+    // 只由 16 种字节组成，压缩后约为一半
+    private byte[] compressible(int size) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) ('a' + random.nextInt(16));
+        }
+        return data;
+    }
+
+    private static List<byte[]> readAll(Logger logger) {
+        List<byte[]> logs = new ArrayList<>();
+        logger.rewind();
+        byte[] log;
+        while ((log = logger.next()) != null) {
+            logs.add(log);
+        }
+        return logs;
+    }
+
+    private static void assertLogs(List<byte[]> expected, List<byte[]> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertArrayEquals(expected.get(i), actual.get(i));
+        }
+    }
+
+    // 写入三条日志后关闭，返回最后一条日志在段文件中的位置
+    private long writeThree(List<byte[]> written) {
+        Logger logger = Logger.create(path);
+        long last = 0;
+        for (int i = 0; i < 3; i++) {
+            written.add(record(100));
+            last = logger.log(written.get(i));
+        }
+        logger.close();
+        return LoggerImpl.offsetOf(last);
+    }
+
+    @Test
+    public void testTornTailIsCutOff() throws Exception {
+        List<byte[]> written = new ArrayList<>();
+        writeThree(written);
+        // 最后一条日志只写了一部分
+        try (RandomAccessFile f = new RandomAccessFile(LoggerImpl.segmentFile(path, 1), "rw")) {
+            f.setLength(f.length() - 10);
+        }
+
+        Logger logger = Logger.open(path);
+        assertLogs(written.subList(0, 2), readAll(logger));
+        // 坏尾被截掉，新日志紧接在第二条之后
+        byte[] next = record(100);
+        logger.log(next);
+        logger.close();
+
+        logger = Logger.open(path);
+        assertLogs(Arrays.asList(written.get(0), written.get(1), next), readAll(logger));
+        logger.close();
+    }
+
+    @Test
+    public void testCorruptRecordFailsChecksum() throws Exception {
+        List<byte[]> written = new ArrayList<>();
+        long last = writeThree(written);
+        // 长度完整，但数据中有一个字节被改写
+        try (RandomAccessFile f = new RandomAccessFile(LoggerImpl.segmentFile(path, 1), "rw")) {
+            long pos = last + 8 + 50;
+            f.seek(pos);
+            int b = f.read();
+            f.seek(pos);
+            f.write(b ^ 0xFF);
+        }
+
+        Logger logger = Logger.open(path);
+        assertLogs(written.subList(0, 2), readAll(logger));
+        logger.close();
+        assertEquals(last, LoggerImpl.segmentFile(path, 1).length());
+    }
+
+    @Test
+    public void testSegmentsRollAndRecycle() {
+        Logger logger = Logger.create(path);
+        List<byte[]> written = new ArrayList<>();
+        List<Long> lsns = new ArrayList<>();
+        // 写满第 1 段，进入第 2 段
+        while (lsns.isEmpty() || LoggerImpl.segmentOf(lsns.get(lsns.size() - 1)) < 2) {
+            written.add(record(256 << 10));
+            lsns.add(logger.log(written.get(written.size() - 1)));
+        }
+        assertTrue(LoggerImpl.segmentFile(path, 2).exists());
+        // 一条日志不跨段
+        int first2 = lsns.size() - 1;
+        assertEquals(LoggerImpl.lsnOf(2, LoggerImpl.HEADER_SIZE), (long) lsns.get(first2));
+        assertLogs(written, readAll(logger));
+
+        // 检查点进入第 2 段后第 1 段被回收，需要第 3 段时改名复用
+        logger.setCheckpoint(lsns.get(first2));
+        assertTrue(LoggerImpl.segmentFile(path, 1).exists());
+        while (LoggerImpl.segmentOf(lsns.get(lsns.size() - 1)) < 3) {
+            written.add(record(256 << 10));
+            lsns.add(logger.log(written.get(written.size() - 1)));
+        }
+        assertFalse(LoggerImpl.segmentFile(path, 1).exists());
+        assertTrue(LoggerImpl.segmentFile(path, 3).exists());
+        logger.close();
+
+        // 重新打开后从检查点开始读
+        logger = Logger.open(path);
+        assertLogs(written.subList(first2, written.size()), readAll(logger));
+        logger.close();
+    }
+
+    @Test
+    public void testCompressedRecordsRoundTrip() {
+        Logger logger = Logger.create(path);
+        // 阈值以下的、压缩效果不够的日志仍按原样写入
+        List<byte[]> written = Arrays.asList(compressible(2000), record(100), compressible(100),
+                new byte[64 << 10], record(5000), compressible(1 << 20));
+        long raw = 0;
+        for (byte[] data : written) {
+            logger.log(data);
+            raw += 8 + data.length;
+        }
+        assertTrue(LoggerImpl.offsetOf(logger.lsn()) - LoggerImpl.HEADER_SIZE < raw * 3 / 4);
+        assertLogs(written, readAll(logger));
+        logger.close();
+
+        logger = Logger.open(path);
+        assertLogs(written, readAll(logger));
+        logger.close();
+    }
+
+    @Test
+    public void testCompressedRecordRollsToNextSegment() {
+        Logger logger = Logger.create(path);
+        List<byte[]> written = new ArrayList<>();
+        long end = logger.lsn();
+        while (LoggerImpl.segmentOf(end) < 2) {
+            written.add(compressible(256 << 10));
+            logger.log(written.get(written.size() - 1));
+            end = logger.lsn();
+        }
+        // 放不下的压缩日志整条写入第 2 段
+        long size = end - LoggerImpl.lsnOf(2, LoggerImpl.HEADER_SIZE);
+        assertTrue(size < (256 << 10) * 3 / 4);
+        assertLogs(written, readAll(logger));
+        logger.close();
+
+        logger = Logger.open(path);
+        assertLogs(written, readAll(logger));
+        logger.close();
+    }
+
+    // 每个线程的日志以线程号开头，读回时按线程分开，检查各自的顺序和内容
+    private static void assertPerThread(List<List<byte[]>> expected, List<byte[]> logs) {
+        List<List<byte[]>> actual = new ArrayList<>();
+        for (int i = 0; i < expected.size(); i++) {
+            actual.add(new ArrayList<>());
+        }
+        for (byte[] log : logs) {
+            actual.get(log[0]).add(log);
+        }
+        for (int i = 0; i < expected.size(); i++) {
+            assertLogs(expected.get(i), actual.get(i));
+        }
+    }
+
+    @Test
+    public void testConcurrentAppendsAcrossSegments() throws Exception {
+        Logger logger = Logger.create(path);
+        int threads = 4;
+        List<List<byte[]>> written = new ArrayList<>();
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            List<byte[]> logs = new ArrayList<>();
+            written.add(logs);
+            Random r = new Random(t);
+            int id = t;
+            workers[t] = new Thread(() -> {
+                for (int i = 0; i < 150; i++) {
+                    // 线程 0 中间有一条超过缓冲区初始容量的日志
+                    int size = id == 0 && i == 75 ? 3 << 20 : 1 + r.nextInt(64 << 10);
+                    byte[] data = new byte[size];
+                    r.nextBytes(data);
+                    data[0] = (byte) id;
+                    logs.add(data);
+                    logger.log(data);
+                }
+            });
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        assertTrue(LoggerImpl.segmentOf(logger.lsn()) >= 2);
+        assertPerThread(written, readAll(logger));
+        logger.close();
+
+        Logger reopened = Logger.open(path);
+        assertPerThread(written, readAll(reopened));
+        reopened.close();
+    }
+
+    private static final int SEED = 13331;
+
+    private static int calCheckSum(int xCheck, byte[] log) {
+        for (byte b : log) {
+            xCheck = xCheck * SEED + b;
+        }
+        return xCheck;
+    }
+
+    private static byte[] int2Byte(int value) {
+        return ByteBuffer.allocate(4).putInt(value).array();
+    }
+
+    // v1：[XChecksum] [Size] [Checksum] [Data] ...，校验和为逐字节累积
+    private void writeV1(List<byte[]> logs) throws Exception {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        int xCheck = 0;
+        for (byte[] data : logs) {
+            byte[] size = int2Byte(data.length);
+            byte[] checkSum = int2Byte(calCheckSum(0, data));
+            body.write(size);
+            body.write(checkSum);
+            body.write(data);
+            xCheck = calCheckSum(calCheckSum(calCheckSum(xCheck, size), checkSum), data);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(int2Byte(xCheck));
+        body.writeTo(out);
+        Files.write(new File(path + LoggerImpl.LOG_SUFFIX).toPath(), out.toByteArray());
+    }
+
+    // v2：[Magic] [Version] [Checkpoint] [Size] [CRC32] [Data] ...，末尾留一条写了一半的日志
+    private void writeV2(List<byte[]> logs) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(ByteBuffer.allocate(16).putInt(LoggerImpl.MAGIC).putInt(2).putLong(16).array());
+        for (byte[] data : logs) {
+            CRC32 crc = new CRC32();
+            crc.update(int2Byte(data.length));
+            crc.update(data);
+            out.write(int2Byte(data.length));
+            out.write(int2Byte((int) crc.getValue()));
+            out.write(data);
+        }
+        out.write(int2Byte(100));
+        out.write(new byte[20]);
+        Files.write(new File(path + LoggerImpl.LOG_SUFFIX).toPath(), out.toByteArray());
+    }
+
+    private void checkUpgrade(List<byte[]> written) {
+        Logger logger = Logger.open(path);
+        assertFalse(new File(path + LoggerImpl.LOG_SUFFIX).exists());
+        assertTrue(LoggerImpl.segmentFile(path, 1).exists());
+        assertLogs(written, readAll(logger));
+        logger.close();
+        // 再次打开读到的是转换后的段
+        logger = Logger.open(path);
+        assertLogs(written, readAll(logger));
+        logger.close();
+    }
+
+    @Test
+    public void testGroupCommitDelayFromFactory() {
+        // flusher 攒批等满 50ms 才写，log 在日志落盘后才返回
+        long delay = 50_000;
+        List<byte[]> written = new ArrayList<>();
+        Logger logger = Logger.create(path, delay);
+        written.add(record(100));
+        long start = System.nanoTime();
+        logger.log(written.get(0));
+        assertTrue(System.nanoTime() - start >= delay * 1000);
+        logger.close();
+
+        logger = Logger.open(path, delay);
+        written.add(record(100));
+        start = System.nanoTime();
+        logger.log(written.get(1));
+        assertTrue(System.nanoTime() - start >= delay * 1000);
+        assertLogs(written, readAll(logger));
+        logger.close();
+    }
+
+    @Test
+    public void testUpgradeV1Log() throws Exception {
+        List<byte[]> written = Arrays.asList(record(10), record(2000), record(1));
+        writeV1(written);
+        checkUpgrade(written);
+    }
+
+    @Test
+    public void testUpgradeV2Log() throws Exception {
+        List<byte[]> written = Arrays.asList(record(10), record(2000), record(1));
+        writeV2(written);
+        checkUpgrade(written);
+    }
+}
@@ -0,0 +1,48 @@
+package cn.edu.gzhu.backend.dm.page.impl;
+
+import cn.edu.gzhu.backend.dm.page.PageCache;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class FramePoolTest {
+    @Test
+    public void testFramesAreDirectAndDisjoint() {
+        FramePool pool = new FramePool();
+        List<ByteBuffer> frames = new ArrayList<>();
+        // 超过一块，跨块申请
+        for (int i = 0; i < FramePool.CHUNK_PAGES * 3 / 2; i++) {
+            ByteBuffer frame = pool.acquire();
+            assertTrue(frame.isDirect());
+            assertEquals(0, frame.position());
+            assertEquals(PageCache.PAGE_SIZE, frame.limit());
+            frame.putInt(0, i);
+            frame.putInt(PageCache.PAGE_SIZE - 4, i);
+            frames.add(frame);
+        }
+        // 每个帧的首尾都没有被其他帧覆盖
+        for (int i = 0; i < frames.size(); i++) {
+            assertEquals(i, frames.get(i).getInt(0));
+            assertEquals(i, frames.get(i).getInt(PageCache.PAGE_SIZE - 4));
+        }
+    }
+
+    @Test
+    public void testReleasedFrameIsReused() {
+        FramePool pool = new FramePool();
+        List<ByteBuffer> chunk = new ArrayList<>();
+        for (int i = 0; i < FramePool.CHUNK_PAGES; i++) {
+            chunk.add(pool.acquire());
+        }
+        ByteBuffer frame = chunk.get(7);
+        pool.release(frame);
+        // 池中只剩这一个空闲帧，不再申请新的块
+        assertSame(frame, pool.acquire());
+    }
+}
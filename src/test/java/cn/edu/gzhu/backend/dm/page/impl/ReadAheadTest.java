@@ -0,0 +1,125 @@
+package cn.edu.gzhu.backend.dm.page.impl;
+
+import cn.edu.gzhu.backend.common.EvictionPolicy;
+import cn.edu.gzhu.backend.dm.page.Page;
+import cn.edu.gzhu.backend.dm.page.PageCache;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ReadAheadTest {
+    private static final int PAGES = 40;
+    private static final int MAX_RESOURCE = 64;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // 记录每一页从文件中读取的次数，以及批量读取的次数
+    static class CountingPageFile extends ChannelPageFile {
+        AtomicIntegerArray reads = new AtomicIntegerArray(PAGES + 1);
+        AtomicInteger runs = new AtomicInteger();
+
+        CountingPageFile(RandomAccessFile file, FileChannel fc) {
+            super(file, fc);
+        }
+
+        @Override
+        public void read(int pageNum, ByteBuffer frame) {
+            reads.incrementAndGet(pageNum);
+            super.read(pageNum, frame);
+        }
+
+        @Override
+        public void read(int startPage, ByteBuffer[] frames) {
+            // 先计批次再计页数，等到页数时批次一定已经计入
+            runs.incrementAndGet();
+            for (int i = 0; i < frames.length; i++) {
+                reads.incrementAndGet(startPage + i);
+            }
+            super.read(startPage, frames);
+        }
+    }
+
+    private CountingPageFile file;
+    private PageCacheImpl pc;
+
+    @Before
+    public void setUp() throws Exception {
+        // 每页的第一个字节为页号
+        RandomAccessFile raf = new RandomAccessFile(folder.newFile("db" + PageCacheImpl.DB_SUFFIX), "rw");
+        for (int i = 1; i <= PAGES; i++) {
+            byte[] data = new byte[PageCache.PAGE_SIZE];
+            data[0] = (byte) i;
+            raf.write(data);
+        }
+        file = new CountingPageFile(raf, raf.getChannel());
+        pc = new PageCacheImpl(file, MAX_RESOURCE, EvictionPolicy.newPolicies(EvictionPolicy.TWO_QUEUE));
+    }
+
+    @After
+    public void tearDown() {
+        pc.close();
+    }
+
+    private void scan(int from, int to) throws Exception {
+        for (int i = from; i <= to; i++) {
+            Page page = pc.getPage(i);
+            assertEquals((byte) i, page.getData().get(0));
+            page.release();
+        }
+    }
+
+    // 预读在后台线程中进行，等待读取的页数达到 pages
+    private void awaitReads(int pages) throws Exception {
+        for (int i = 0; i < 500 && readPages() < pages; i++) {
+            Thread.sleep(10);
+        }
+    }
+
+    private int readPages() {
+        int n = 0;
+        for (int i = 1; i <= PAGES; i++) {
+            n += file.reads.get(i);
+        }
+        return n;
+    }
+
+    @Test
+    public void testSequentialScanReadsAhead() throws Exception {
+        // 连续访问三页后开始预读之后的页
+        scan(1, 3);
+        awaitReads(4);
+        assertTrue(file.runs.get() > 0);
+        scan(4, PAGES);
+        // 缓存放得下所有页，预读过的页不会再被 getPage 读一次
+        for (int i = 1; i <= PAGES; i++) {
+            assertEquals(1, file.reads.get(i));
+        }
+    }
+
+    @Test
+    public void testHintReadsContiguousRuns() throws Exception {
+        pc.prefetch(new int[]{30, 5, 6, 7, 31, 5, PAGES + 1});
+        awaitReads(5);
+        assertEquals(2, file.runs.get());
+        // 乱序访问，不触发顺序预读
+        int[] hinted = {31, 5, 30, 7, 6};
+        for (int pageNum : hinted) {
+            Page page = pc.getPage(pageNum);
+            assertEquals((byte) pageNum, page.getData().get(0));
+            page.release();
+        }
+        assertEquals(5, readPages());
+    }
+}
@@ -0,0 +1,58 @@
+package cn.edu.gzhu.backend.im;
+
+import cn.edu.gzhu.backend.dm.DataManager;
+import cn.edu.gzhu.backend.dm.logger.impl.LoggerImpl;
+import cn.edu.gzhu.backend.tm.TransactionManager;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class BPlusTreeTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testSearchRangeHintsPrefetch() throws Exception {
+        String path = folder.getRoot().getAbsolutePath() + "/db";
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager real = DataManager.create(path, 1 << 20, null, null, LoggerImpl.DEFAULT_GROUP_COMMIT_DELAY, tm);
+        // 记录 BPlusTree 给出的预读提示
+        List<List<Long>> hints = new ArrayList<>();
+        DataManager dm = (DataManager) Proxy.newProxyInstance(DataManager.class.getClassLoader(),
+                new Class<?>[]{DataManager.class}, (proxy, method, args) -> {
+                    if("prefetch".equals(method.getName())) {
+                        hints.add(new ArrayList<>((List<Long>) args[0]));
+                    }
+                    try {
+                        return method.invoke(real, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                });
+
+        BPlusTree tree = BPlusTree.load(BPlusTree.create(dm), dm);
+        for (long key = 0; key < 200; key++) {
+            tree.insert(key, 1000 + key);
+        }
+        List<Long> uids = tree.searchRange(20, 150);
+        assertEquals(131, uids.size());
+        assertEquals(1, hints.size());
+        assertEquals(uids, hints.get(0));
+
+        // 只有一条结果时不值得预读
+        assertEquals(1, tree.search(7).size());
+        assertEquals(1, hints.size());
+
+        tree.close();
+        real.close();
+        tm.close();
+    }
+}
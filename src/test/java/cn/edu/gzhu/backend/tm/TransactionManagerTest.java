@@ -0,0 +1,249 @@
+package cn.edu.gzhu.backend.tm;
+
+import cn.edu.gzhu.backend.tm.impl.TransactionManagerImpl;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TransactionManagerTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private String path;
+
+    @Before
+    public void setUp() {
+        path = folder.getRoot().getAbsolutePath() + "/db";
+    }
+
+    // 第 i 个事务：i % 3 == 0 提交，i % 3 == 1 回滚，其余未结束
+    private static void checkStatus(TransactionManager tm, long xid, int i) {
+        assertEquals(i % 3 == 0, tm.isCommitted(xid));
+        assertEquals(i % 3 == 1, tm.isAborted(xid));
+        assertEquals(i % 3 == 2, tm.isActive(xid));
+    }
+
+    @Test
+    public void testStatusesSurviveReopen() {
+        TransactionManager tm = TransactionManager.create(path);
+        long[] xids = new long[300];
+        for (int i = 0; i < xids.length; i++) {
+            xids[i] = tm.begin();
+            if(i % 3 == 0) {
+                tm.commit(xids[i]);
+            } else if(i % 3 == 1) {
+                tm.abort(xids[i]);
+            }
+        }
+        for (int i = 0; i < xids.length; i++) {
+            checkStatus(tm, xids[i], i);
+        }
+        assertTrue(tm.isCommitted(TransactionManagerImpl.SUPER_XID));
+        tm.close();
+
+        tm = TransactionManager.open(path);
+        for (int i = 0; i < xids.length; i++) {
+            checkStatus(tm, xids[i], i);
+        }
+        assertFalse(tm.isActive(TransactionManagerImpl.SUPER_XID));
+        tm.close();
+    }
+
+    // 模拟崩溃时 begin 的写入只有一部分到达磁盘：改写 XIDCounter，截断状态
+    private void tamper(long counter, long xids) throws Exception {
+        try (RandomAccessFile f = new RandomAccessFile(path + TransactionManagerImpl.XID_SUFFIX, "rw")) {
+            f.writeLong(counter);
+            f.setLength(TransactionManagerImpl.LEN_XID_HEADER_LENGTH + xids);
+        }
+    }
+
+    @Test
+    public void testCounterLagsBehindFileLength() throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        long x1 = tm.begin();
+        tm.commit(x1);
+        long x2 = tm.begin();
+        long x3 = tm.begin();
+        tm.close();
+        // 状态已写入，XIDCounter 没有
+        tamper(x1, x3);
+
+        tm = TransactionManager.open(path);
+        assertTrue(tm.begin() > x3);
+        assertTrue(tm.isCommitted(x1));
+        assertFalse(tm.isCommitted(x2));
+        assertFalse(tm.isCommitted(x3));
+        tm.close();
+    }
+
+    @Test
+    public void testFileShorterThanCounter() throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        long x1 = tm.begin();
+        tm.commit(x1);
+        long x2 = tm.begin();
+        tm.close();
+        // XIDCounter 已写入，状态没有
+        tamper(x2, x1);
+
+        tm = TransactionManager.open(path);
+        assertTrue(tm.isCommitted(x1));
+        assertFalse(tm.isCommitted(x2));
+        long x3 = tm.begin();
+        assertTrue(x3 > x2);
+        tm.commit(x3);
+        tm.close();
+
+        tm = TransactionManager.open(path);
+        assertTrue(tm.isCommitted(x3));
+        assertFalse(tm.isCommitted(x2));
+        tm.close();
+    }
+
+    @Test
+    public void testConcurrentCommitsAreDurable() throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        Thread[] threads = new Thread[8];
+        long[][] xids = new long[threads.length][100];
+        for (int t = 0; t < threads.length; t++) {
+            long[] mine = xids[t];
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < mine.length; i++) {
+                    mine[i] = tm.begin();
+                    if(i % 3 == 0) {
+                        tm.commit(mine[i]);
+                    } else if(i % 3 == 1) {
+                        tm.abort(mine[i]);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        // 不关闭，直接重新打开：commit 和 abort 返回时已经落盘
+        TransactionManager reopened = TransactionManager.open(path);
+        for (long[] mine : xids) {
+            for (int i = 0; i < mine.length; i++) {
+                assertEquals(i % 3 == 0, reopened.isCommitted(mine[i]));
+                assertEquals(i % 3 == 1, reopened.isAborted(mine[i]));
+            }
+        }
+        reopened.close();
+        tm.close();
+    }
+
+    private long readCounter() throws Exception {
+        try (RandomAccessFile f = new RandomAccessFile(path + TransactionManagerImpl.XID_SUFFIX, "r")) {
+            return f.readLong();
+        }
+    }
+
+    @Test
+    public void testReservedXidsAreNotReusedAfterCrash() throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        long committed = tm.begin();
+        tm.commit(committed);
+        long last = 0;
+        for (int i = 0; i < 5; i++) {
+            last = tm.begin();
+        }
+        // 文件中记录的是预留区间的末尾，而不是已分配的最大 XID
+        assertTrue(readCounter() > last);
+        // 崩溃：begin 不落盘，不关闭直接重新打开
+        TransactionManager reopened = TransactionManager.open(path);
+        long next = reopened.begin();
+        assertTrue(next > last);
+        assertTrue(reopened.isCommitted(committed));
+        // 上次分配出去却没有结束的事务仍视为未提交
+        assertFalse(reopened.isCommitted(last));
+        reopened.close();
+        tm.close();
+    }
+
+    private long xidFileLength() {
+        return new File(path + TransactionManagerImpl.XID_SUFFIX).length();
+    }
+
+    // 冻结后的格式：[MAGIC 8] [XIDCounter 8] [Horizon 8] [RangeCount 4] ...
+    private int readAbortedRangeCount() throws Exception {
+        try (RandomAccessFile f = new RandomAccessFile(path + TransactionManagerImpl.XID_SUFFIX, "r")) {
+            f.seek(24);
+            return f.readInt();
+        }
+    }
+
+    // 冻结后的格式以负数 MAGIC 开头
+    private boolean isFrozenFormat() throws Exception {
+        return readCounter() < 0;
+    }
+
+    @Test
+    public void testFreezeAndCompactAcrossReopen() throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        long committed = tm.begin();
+        tm.commit(committed);
+        long aborted = tm.begin();
+        tm.abort(aborted);
+        long unfinished = tm.begin();
+        // 分配超过 1 << 20 个事务，大部分没有结束
+        long last = 0;
+        for (int i = 0; i < (1 << 20) + 10; i++) {
+            last = tm.begin();
+        }
+        long lateAborted = last;
+        tm.abort(lateAborted);
+        // 预留了却从未分配的 XID
+        long reserved = last + 1;
+        tm.close();
+        assertFalse(isFrozenFormat());
+        long before = xidFileLength();
+
+        // 重新打开后，之前遗留的事务都已结束，下一次预留时推进水位并重写文件
+        tm = TransactionManager.open(path);
+        long xid = 0;
+        while (xidFileLength() >= before) {
+            xid = tm.begin();
+        }
+        assertTrue(xid > last);
+        assertTrue(isFrozenFormat());
+        checkFrozen(tm, committed, aborted, unfinished, lateAborted, reserved);
+        // 遗留的事务和预留与相邻的 aborted 合并成了一个区间
+        assertEquals(1, readAbortedRangeCount());
+        tm.commit(xid);
+        tm.close();
+
+        // 冻结后的格式重新打开，状态不变，新的 XID 继续增长
+        tm = TransactionManager.open(path);
+        checkFrozen(tm, committed, aborted, unfinished, lateAborted, reserved);
+        assertTrue(tm.isCommitted(xid));
+        long next = tm.begin();
+        assertTrue(next > xid);
+        tm.abort(next);
+        tm.close();
+
+        tm = TransactionManager.open(path);
+        assertTrue(tm.isAborted(next));
+        tm.close();
+    }
+
+    private static void checkFrozen(TransactionManager tm, long committed, long aborted, long unfinished, long lateAborted, long reserved) {
+        assertTrue(tm.isCommitted(committed));
+        assertTrue(tm.isAborted(aborted));
+        assertTrue(tm.isAborted(lateAborted));
+        // 没有日志的遗留事务和未用完的预留从未提交，冻结为 aborted
+        assertTrue(tm.isAborted(unfinished));
+        assertFalse(tm.isActive(unfinished));
+        assertTrue(tm.isAborted(reserved));
+        assertFalse(tm.isCommitted(reserved));
+    }
+}
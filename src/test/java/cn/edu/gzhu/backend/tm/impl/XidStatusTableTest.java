@@ -0,0 +1,70 @@
+package cn.edu.gzhu.backend.tm.impl;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class XidStatusTableTest {
+    private static final byte ACTIVE = 0;
+    private static final byte COMMITTED = 1;
+    private static final byte ABORTED = 2;
+
+    @Test
+    public void testStatusesAcrossChunks() {
+        XidStatusTable table = new XidStatusTable();
+        long[] xids = {1, 31, 32, XidStatusTable.CHUNK_XIDS - 1, XidStatusTable.CHUNK_XIDS, 3L * XidStatusTable.CHUNK_XIDS + 7};
+        for (int i = 0; i < xids.length; i++) {
+            table.set(xids[i], i % 2 == 0 ? COMMITTED : ABORTED);
+        }
+        for (int i = 0; i < xids.length; i++) {
+            assertEquals(i % 2 == 0 ? COMMITTED : ABORTED, table.get(xids[i]));
+        }
+        // 相邻的 xid 和未分配的块读出为 active
+        assertEquals(ACTIVE, table.get(2));
+        assertEquals(ACTIVE, table.get(2L * XidStatusTable.CHUNK_XIDS));
+        assertEquals(ACTIVE, table.get(100L * XidStatusTable.CHUNK_XIDS));
+    }
+
+    @Test
+    public void testConcurrentSetsInOneWord() throws Exception {
+        // 32 个事务的状态在同一个 long 中，并发修改不能互相覆盖
+        XidStatusTable table = new XidStatusTable();
+        Thread[] threads = new Thread[32];
+        for (int t = 0; t < threads.length; t++) {
+            long xid = 64 + t;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 10000; i++) {
+                    table.set(xid, i % 2 == 0 ? COMMITTED : ABORTED);
+                }
+                table.set(xid, xid % 2 == 0 ? COMMITTED : ABORTED);
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (long xid = 64; xid < 96; xid++) {
+            assertEquals(xid % 2 == 0 ? COMMITTED : ABORTED, table.get(xid));
+        }
+    }
+
+    @Test
+    public void testTruncateDropsWholeChunks() {
+        XidStatusTable table = new XidStatusTable();
+        long chunk = XidStatusTable.CHUNK_XIDS;
+        table.set(5, COMMITTED);
+        table.set(chunk + 5, ABORTED);
+        // 只丢弃完全位于水位之前的块
+        table.truncate(chunk + 6);
+        assertEquals(XidStatusTable.FROZEN, table.get(5));
+        assertEquals(ABORTED, table.get(chunk + 5));
+
+        // 水位越过已分配的块，之后扩容时不再分配水位之前的块
+        table.truncate(3 * chunk + 1);
+        table.set(4 * chunk + 1, COMMITTED);
+        assertEquals(XidStatusTable.FROZEN, table.get(chunk + 5));
+        assertEquals(XidStatusTable.FROZEN, table.get(2 * chunk));
+        assertEquals(ACTIVE, table.get(3 * chunk + 1));
+        assertEquals(COMMITTED, table.get(4 * chunk + 1));
+    }
+}
@@ -0,0 +1,70 @@
+package cn.edu.gzhu.backend.vm;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CsnTableTest {
+    // 与 CsnTable 中每块的 xid 数相同
+    private static final long CHUNK = 1 << 12;
+
+    private static void commit(CsnTable csns, long xid) {
+        csns.pending(xid);
+        csns.commit(xid);
+    }
+
+    @Test
+    public void testVisibilityBySnapshot() {
+        CsnTable csns = new CsnTable();
+        commit(csns, 1);
+        long s1 = csns.snapshot();
+        csns.pending(2);
+        // PENDING 对所有快照都不可见
+        assertTrue(csns.isCommittedAfter(2, s1));
+        assertTrue(csns.isCommittedAfter(2, Long.MAX_VALUE - 1));
+        csns.commit(2);
+        long s2 = csns.snapshot();
+        assertEquals(s1 + 1, s2);
+
+        assertFalse(csns.isCommittedAfter(1, s1));
+        assertTrue(csns.isCommittedAfter(2, s1));
+        assertFalse(csns.isCommittedAfter(2, s2));
+        // 表中没有的 xid 对所有快照可见
+        assertFalse(csns.isCommittedAfter(3, 0));
+    }
+
+    @Test
+    public void testPruneDropsChunksVisibleToAllSnapshots() {
+        CsnTable csns = new CsnTable();
+        long a = 5;
+        long b = CHUNK + 5;
+        long c = 2 * CHUNK + 5;
+        commit(csns, a);
+        long s0 = csns.snapshot();
+        commit(csns, b);
+        long s1 = csns.snapshot();
+        commit(csns, c);
+
+        // b 所在的块中有对 s0 不可见的提交，从它开始全部保留
+        csns.prune(3 * CHUNK, s0);
+        assertFalse(csns.isCommittedAfter(a, 0));
+        assertTrue(csns.isCommittedAfter(b, s0));
+        assertTrue(csns.isCommittedAfter(c, s1));
+
+        // 最早的活跃事务位于 c 的块中，c 的块不能丢弃
+        csns.prune(c, s1);
+        assertFalse(csns.isCommittedAfter(b, 0));
+        assertTrue(csns.isCommittedAfter(c, s1));
+
+        // 丢弃之后仍能在更早或更晚的块中提交
+        commit(csns, a + 1);
+        commit(csns, 4 * CHUNK);
+        long s2 = csns.snapshot();
+        assertTrue(csns.isCommittedAfter(a + 1, s1));
+        assertTrue(csns.isCommittedAfter(4 * CHUNK, s2 - 1));
+        assertFalse(csns.isCommittedAfter(4 * CHUNK, s2));
+        assertTrue(csns.isCommittedAfter(c, s1));
+    }
+}